@@ -0,0 +1,129 @@
+/*
+ * Copyright 2001-2012 Remi Vankeisbelck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package woko.idea;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Computable;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.*;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.psi.search.PackageScope;
+import com.intellij.psi.search.searches.AnnotatedElementsSearch;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Asks the IDE's annotation index for the classes annotated with
+ * <code>@FacetKey</code> or <code>@FacetKeyList</code> in each configured package,
+ * so that classes without facet annotations are never loaded.
+ */
+class AnnotationIndexScanEngine implements FacetScanEngine {
+
+    // number of files parsed per read action
+
+    private final Project project;
+    private final PsiClass[] annotationClasses;
+
+    private AnnotationIndexScanEngine(Project project, PsiClass[] annotationClasses) {
+        this.project = project;
+        this.annotationClasses = annotationClasses;
+    }
+
+    /**
+     * Create the engine for passed project. Must be called inside a read action.
+     * @return the engine, or <code>null</code> if the JFacets annotations
+     * are not available to the project
+     */
+    static AnnotationIndexScanEngine create(Project project) {
+        JavaPsiFacade psiFacade = JavaPsiFacade.getInstance(project);
+        GlobalSearchScope allScope = GlobalSearchScope.allScope(project);
+        PsiClass facetKey = psiFacade.findClass(FacetAnnotationReader.FACET_KEY, allScope);
+        PsiClass facetKeyList = psiFacade.findClass(FacetAnnotationReader.FACET_KEY_LIST, allScope);
+        if (facetKey==null || facetKeyList==null) {
+            return null;
+        }
+        return new AnnotationIndexScanEngine(project, new PsiClass[] { facetKey, facetKeyList });
+    }
+
+    @Override
+    public String getName() {
+        return "annotation index";
+    }
+
+    @Override
+    public List<ScanUnit> split(String packageName, int packageRank) {
+        // index queries are cheap : one unit per package
+        List<ScanUnit> units = new ArrayList<ScanUnit>();
+        units.add(new ScanUnit(packageRank, packageName, true));
+        return units;
+    }
+
+    @Override
+    public void scan(final ScanUnit unit, ProgressIndicator indicator, final FileSink sink) {
+        indicator.checkCanceled();
+        indicator.setText("Woko plugin scanning package : " + unit.getPackageName());
+        List<VirtualFile> files = ApplicationManager.getApplication().runReadAction(new Computable<List<VirtualFile>>() {
+            @Override
+            public List<VirtualFile> compute() {
+                return findAnnotatedFiles(unit.getPackageName());
+            }
+        });
+        // parse the files in small batches, one read action per batch
+        for (int i = 0; i < files.size(); i += BATCH_SIZE) {
+            indicator.checkCanceled();
+            final List<VirtualFile> batch = files.subList(i, Math.min(files.size(), i + BATCH_SIZE));
+            ApplicationManager.getApplication().runReadAction(new Runnable() {
+                @Override
+                public void run() {
+                    PsiManager psiManager = PsiManager.getInstance(project);
+                    for (VirtualFile vf : batch) {
+                        if (vf.isValid()) {
+                            PsiFile psiFile = psiManager.findFile(vf);
+                            if (psiFile!=null) {
+                                sink.fileFound(psiFile, vf, unit.getPackageRank());
+                            }
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    private List<VirtualFile> findAnnotatedFiles(String pkgName) {
+        PsiPackage psiPkg = JavaPsiFacade.getInstance(project).findPackage(pkgName);
+        if (psiPkg==null) {
+            return new ArrayList<VirtualFile>();
+        }
+        GlobalSearchScope scope = PackageScope.packageScope(psiPkg, true);
+        Set<VirtualFile> files = new LinkedHashSet<VirtualFile>();
+        for (PsiClass annotationClass : annotationClasses) {
+            for (PsiClass psiClass : AnnotatedElementsSearch.searchPsiClasses(annotationClass, scope).findAll()) {
+                PsiFile containingFile = psiClass.getContainingFile();
+                VirtualFile vf = containingFile!=null ? containingFile.getVirtualFile() : null;
+                if (vf!=null) {
+                    files.add(vf);
+                }
+            }
+        }
+        return new ArrayList<VirtualFile>(files);
+    }
+
+}
@@ -0,0 +1,389 @@
+/*
+ * Copyright 2001-2012 Remi Vankeisbelck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package woko.idea;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An annotation parsed from its source text, as kept in the stubs, so that
+ * its attributes can be read without loading the AST of the file. Attribute
+ * values are either the text of an expression, a nested <code>AnnotationText</code>,
+ * or a list of these (array initializers).
+ */
+class AnnotationText {
+
+    private final Map<String,Object> attributes;
+
+    private AnnotationText(Map<String,Object> attributes) {
+        this.attributes = attributes;
+    }
+
+    boolean hasAttribute(String attributeName) {
+        return attributes.containsKey(attributeName);
+    }
+
+    /**
+     * Return the value of passed attribute if it is a string literal, or
+     * a concatenation of string literals, <code>null</code> otherwise.
+     */
+    String getStringValue(String attributeName) {
+        Object value = attributes.get(attributeName);
+        return value instanceof String ? evaluateString((String)value) : null;
+    }
+
+    /**
+     * Return the class name (as written) of passed attribute if it is a
+     * class literal (<code>Foo.class</code>), <code>null</code> otherwise.
+     */
+    String getClassLiteralValue(String attributeName) {
+        Object value = attributes.get(attributeName);
+        return value instanceof String ? getClassLiteral((String)value) : null;
+    }
+
+    /**
+     * Return the annotations of passed attribute, which can be either
+     * an annotation or an array of annotations, or <code>null</code> if
+     * the attribute has any other value.
+     */
+    List<AnnotationText> getAnnotationsValue(String attributeName) {
+        Object value = attributes.get(attributeName);
+        if (value instanceof AnnotationText) {
+            return Collections.singletonList((AnnotationText)value);
+        }
+        if (value instanceof List<?>) {
+            List<AnnotationText> res = new ArrayList<AnnotationText>();
+            for (Object o : (List<?>)value) {
+                if (!(o instanceof AnnotationText)) {
+                    return null;
+                }
+                res.add((AnnotationText)o);
+            }
+            return res;
+        }
+        return null;
+    }
+
+    /**
+     * Parse passed annotation text (e.g. <code>@FacetKey(name="view", profileId="all")</code>).
+     * @return the annotation, or <code>null</code> if the text can't be parsed
+     */
+    static AnnotationText parse(String text) {
+        if (text==null) {
+            return null;
+        }
+        Parser p = new Parser(text);
+        AnnotationText res = p.annotation();
+        if (res==null || p.skipBlanks()!=text.length()) {
+            return null;
+        }
+        return res;
+    }
+
+    static String evaluateString(String expression) {
+        StringBuilder sb = new StringBuilder();
+        int i = 0;
+        int len = expression.length();
+        boolean expectLiteral = true;
+        while (true) {
+            while (i < len && Character.isWhitespace(expression.charAt(i))) {
+                i++;
+            }
+            if (i==len) {
+                return expectLiteral ? null : sb.toString();
+            }
+            char c = expression.charAt(i);
+            if (expectLiteral) {
+                if (c!='"') {
+                    return null;
+                }
+                i = appendStringLiteral(expression, i, sb);
+                if (i==-1) {
+                    return null;
+                }
+            } else if (c!='+') {
+                return null;
+            } else {
+                i++;
+            }
+            expectLiteral = !expectLiteral;
+        }
+    }
+
+    /**
+     * Append the value of the string literal that starts at passed
+     * index, and return the index after its closing quote, or
+     * <code>-1</code> if the literal is not supported.
+     */
+    private static int appendStringLiteral(String s, int start, StringBuilder sb) {
+        int i = start + 1;
+        while (i < s.length()) {
+            char c = s.charAt(i++);
+            if (c=='"') {
+                return i;
+            }
+            if (c=='\n') {
+                return -1;
+            }
+            if (c!='\\') {
+                sb.append(c);
+                continue;
+            }
+            if (i==s.length()) {
+                return -1;
+            }
+            char e = s.charAt(i++);
+            switch (e) {
+                case 'n': sb.append('\n'); break;
+                case 't': sb.append('\t'); break;
+                case 'r': sb.append('\r'); break;
+                case 'b': sb.append('\b'); break;
+                case 'f': sb.append('\f'); break;
+                case '"':
+                case '\'':
+                case '\\': sb.append(e); break;
+                default:
+                    // octal and unicode escapes : let the AST handle them
+                    return -1;
+            }
+        }
+        return -1;
+    }
+
+    static String getClassLiteral(String expression) {
+        String s = expression.trim();
+        if (!s.endsWith("class")) {
+            return null;
+        }
+        s = s.substring(0, s.length() - "class".length()).trim();
+        if (!s.endsWith(".")) {
+            return null;
+        }
+        s = s.substring(0, s.length() - 1);
+        StringBuilder sb = new StringBuilder();
+        for (String part : s.split("\\.", -1)) {
+            part = part.trim();
+            if (!isIdentifier(part)) {
+                // arrays, or not a class literal at all
+                return null;
+            }
+            if (sb.length() > 0) {
+                sb.append('.');
+            }
+            sb.append(part);
+        }
+        return sb.toString();
+    }
+
+    private static boolean isIdentifier(String s) {
+        if (s.length()==0 || !Character.isJavaIdentifierStart(s.charAt(0))) {
+            return false;
+        }
+        for (int i = 1; i < s.length(); i++) {
+            if (!Character.isJavaIdentifierPart(s.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Recursive descent parser of annotations. Expressions are not parsed,
+     * only delimited (taking nested brackets and literals into account).
+     * Comments are not supported : the caller falls back to the AST.
+     */
+    private static class Parser {
+
+        private final String text;
+        private int pos = 0;
+
+        Parser(String text) {
+            this.text = text;
+        }
+
+        int skipBlanks() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+            return pos;
+        }
+
+        private boolean accept(char c) {
+            skipBlanks();
+            if (pos < text.length() && text.charAt(pos)==c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private boolean peek(char c) {
+            skipBlanks();
+            return pos < text.length() && text.charAt(pos)==c;
+        }
+
+        private String identifier() {
+            skipBlanks();
+            int start = pos;
+            if (pos < text.length() && Character.isJavaIdentifierStart(text.charAt(pos))) {
+                pos++;
+                while (pos < text.length() && Character.isJavaIdentifierPart(text.charAt(pos))) {
+                    pos++;
+                }
+                return text.substring(start, pos);
+            }
+            return null;
+        }
+
+        private String qualifiedName() {
+            StringBuilder sb = new StringBuilder();
+            do {
+                String id = identifier();
+                if (id==null) {
+                    return null;
+                }
+                if (sb.length() > 0) {
+                    sb.append('.');
+                }
+                sb.append(id);
+            } while (accept('.'));
+            return sb.toString();
+        }
+
+        AnnotationText annotation() {
+            if (!accept('@')) {
+                return null;
+            }
+            String name = qualifiedName();
+            if (name==null) {
+                return null;
+            }
+            Map<String,Object> attributes = new LinkedHashMap<String, Object>();
+            if (accept('(') && !accept(')')) {
+                // either a single value, or name=value pairs
+                int mark = pos;
+                String attributeName = identifier();
+                if (attributeName==null || !accept('=')) {
+                    pos = mark;
+                    Object value = value();
+                    if (value==null) {
+                        return null;
+                    }
+                    attributes.put("value", value);
+                } else {
+                    while (true) {
+                        Object value = value();
+                        if (value==null) {
+                            return null;
+                        }
+                        attributes.put(attributeName, value);
+                        if (!accept(',')) {
+                            break;
+                        }
+                        attributeName = identifier();
+                        if (attributeName==null || !accept('=')) {
+                            return null;
+                        }
+                    }
+                }
+                if (!accept(')')) {
+                    return null;
+                }
+            }
+            return new AnnotationText(attributes);
+        }
+
+        private Object value() {
+            if (peek('@')) {
+                return annotation();
+            }
+            if (accept('{')) {
+                List<Object> values = new ArrayList<Object>();
+                if (accept('}')) {
+                    return values;
+                }
+                do {
+                    if (peek('}')) {
+                        // trailing comma
+                        break;
+                    }
+                    Object value = value();
+                    if (value==null) {
+                        return null;
+                    }
+                    values.add(value);
+                } while (accept(','));
+                return accept('}') ? values : null;
+            }
+            return expression();
+        }
+
+        /**
+         * Delimit an expression : up to the next top level ',', ')' or '}'.
+         */
+        private String expression() {
+            skipBlanks();
+            int start = pos;
+            int depth = 0;
+            while (pos < text.length()) {
+                char c = text.charAt(pos);
+                if (c=='"' || c=='\'') {
+                    if (!skipLiteral(c)) {
+                        return null;
+                    }
+                    continue;
+                }
+                if (c=='/' && pos + 1 < text.length()
+                        && (text.charAt(pos + 1)=='/' || text.charAt(pos + 1)=='*')) {
+                    return null;
+                }
+                if (c=='(' || c=='[' || c=='{') {
+                    depth++;
+                } else if (c==')' || c==']' || c=='}') {
+                    if (depth==0) {
+                        break;
+                    }
+                    depth--;
+                } else if (c==',' && depth==0) {
+                    break;
+                }
+                pos++;
+            }
+            String res = text.substring(start, pos).trim();
+            return res.length()==0 || depth!=0 ? null : res;
+        }
+
+        private boolean skipLiteral(char quote) {
+            pos++;
+            while (pos < text.length()) {
+                char c = text.charAt(pos++);
+                if (c=='\\') {
+                    pos++;
+                } else if (c==quote) {
+                    return true;
+                } else if (c=='\n') {
+                    return false;
+                }
+            }
+            return false;
+        }
+    }
+
+}
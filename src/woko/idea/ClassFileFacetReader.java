@@ -0,0 +1,374 @@
+/*
+ * Copyright 2001-2012 Remi Vankeisbelck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package woko.idea;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads the <code>@FacetKey</code> and <code>@FacetKeyList</code> annotations
+ * straight from the <code>RuntimeVisibleAnnotations</code> attribute of class files,
+ * without loading any PSI. The constant pool is parsed in place : only the offsets
+ * of its entries are recorded, names are compared as bytes, and strings are only
+ * decoded for the values of the keys. Classes that don't reference the annotations
+ * are rejected right after the constant pool.
+ *
+ * Not thread safe : each scanning thread uses its own reader, which
+ * reuses its buffers from one class to the next.
+ */
+class ClassFileFacetReader {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static final byte[] FACET_KEY_DESC = descriptor(FacetAnnotationReader.FACET_KEY);
+    private static final byte[] FACET_KEY_LIST_DESC = descriptor(FacetAnnotationReader.FACET_KEY_LIST);
+    private static final byte[] RUNTIME_VISIBLE_ANNOTATIONS = "RuntimeVisibleAnnotations".getBytes(ASCII);
+
+    private static final int MAGIC = 0xCAFEBABE;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_FLOAT = 4;
+    private static final int CONSTANT_LONG = 5;
+    private static final int CONSTANT_DOUBLE = 6;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_STRING = 8;
+    private static final int CONSTANT_FIELD_REF = 9;
+    private static final int CONSTANT_METHOD_REF = 10;
+    private static final int CONSTANT_INTERFACE_METHOD_REF = 11;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+    private static final int CONSTANT_METHOD_HANDLE = 15;
+    private static final int CONSTANT_METHOD_TYPE = 16;
+    private static final int CONSTANT_DYNAMIC = 17;
+    private static final int CONSTANT_INVOKE_DYNAMIC = 18;
+    private static final int CONSTANT_MODULE = 19;
+    private static final int CONSTANT_PACKAGE = 20;
+
+    private static final String DEFAULT_TARGET_OBJECT_TYPE = "java.lang.Object";
+
+    private ByteBuffer buf;
+    private int[] cpOffsets = new int[256];
+    private char[] chars = new char[64];
+
+    private int facetKeyIndex;
+    private int facetKeyListIndex;
+    private String className;
+    private List<WideaFacetDescriptor> descriptors;
+
+    private static byte[] descriptor(String fqcn) {
+        return ("L" + fqcn.replace('.', '/') + ";").getBytes(ASCII);
+    }
+
+    /**
+     * Read the keys of the class in passed buffer (from its position to its limit).
+     * @return the descriptors of the class, empty if it's not a facet
+     * @throws IllegalArgumentException if the class file is malformed
+     */
+    List<WideaFacetDescriptor> read(ByteBuffer classFile) {
+        buf = classFile;
+        try {
+            return doRead(classFile.position());
+        } catch(IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Truncated class file", e);
+        } finally {
+            buf = null;
+            className = null;
+            descriptors = null;
+        }
+    }
+
+    private List<WideaFacetDescriptor> doRead(int start) {
+        if (buf.getInt(start)!=MAGIC) {
+            throw new IllegalArgumentException("Not a class file");
+        }
+        int cpCount = u2(start + 8);
+        if (cpOffsets.length < cpCount) {
+            cpOffsets = new int[Math.max(cpCount, cpOffsets.length * 2)];
+        }
+        facetKeyIndex = -1;
+        facetKeyListIndex = -1;
+        int annotationsIndex = -1;
+        int pos = start + 10;
+        for (int i = 1; i < cpCount; i++) {
+            cpOffsets[i] = pos;
+            int tag = buf.get(pos) & 0xFF;
+            switch (tag) {
+                case CONSTANT_UTF8:
+                    if (utf8Equals(i, FACET_KEY_DESC)) {
+                        facetKeyIndex = i;
+                    } else if (utf8Equals(i, FACET_KEY_LIST_DESC)) {
+                        facetKeyListIndex = i;
+                    } else if (utf8Equals(i, RUNTIME_VISIBLE_ANNOTATIONS)) {
+                        annotationsIndex = i;
+                    }
+                    pos += 3 + u2(pos + 1);
+                    break;
+                case CONSTANT_INTEGER:
+                case CONSTANT_FLOAT:
+                case CONSTANT_FIELD_REF:
+                case CONSTANT_METHOD_REF:
+                case CONSTANT_INTERFACE_METHOD_REF:
+                case CONSTANT_NAME_AND_TYPE:
+                case CONSTANT_DYNAMIC:
+                case CONSTANT_INVOKE_DYNAMIC:
+                    pos += 5;
+                    break;
+                case CONSTANT_LONG:
+                case CONSTANT_DOUBLE:
+                    // takes two slots
+                    pos += 9;
+                    i++;
+                    break;
+                case CONSTANT_CLASS:
+                case CONSTANT_STRING:
+                case CONSTANT_METHOD_TYPE:
+                case CONSTANT_MODULE:
+                case CONSTANT_PACKAGE:
+                    pos += 3;
+                    break;
+                case CONSTANT_METHOD_HANDLE:
+                    pos += 4;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown constant pool tag " + tag);
+            }
+        }
+        if ((facetKeyIndex==-1 && facetKeyListIndex==-1) || annotationsIndex==-1) {
+            // not annotated with the facet annotations : skip the rest
+            return Collections.emptyList();
+        }
+        int thisClass = u2(pos + 2);
+        className = toClassName(utf8(u2(cpOffsets[thisClass] + 1)));
+        pos += 6;
+        pos += 2 + 2 * u2(pos); // interfaces
+        pos = skipMembers(pos); // fields
+        pos = skipMembers(pos); // methods
+        descriptors = new ArrayList<WideaFacetDescriptor>();
+        int nbAttributes = u2(pos);
+        pos += 2;
+        for (int i = 0; i < nbAttributes; i++) {
+            int nameIndex = u2(pos);
+            int length = buf.getInt(pos + 2);
+            if (nameIndex==annotationsIndex) {
+                readAnnotations(pos + 6);
+            }
+            pos += 6 + length;
+        }
+        return descriptors;
+    }
+
+    private int skipMembers(int pos) {
+        int count = u2(pos);
+        pos += 2;
+        for (int i = 0; i < count; i++) {
+            int nbAttributes = u2(pos + 6);
+            pos += 8;
+            for (int j = 0; j < nbAttributes; j++) {
+                pos += 6 + buf.getInt(pos + 2);
+            }
+        }
+        return pos;
+    }
+
+    private void readAnnotations(int pos) {
+        int count = u2(pos);
+        pos += 2;
+        for (int i = 0; i < count; i++) {
+            int typeIndex = u2(pos);
+            if (typeIndex==facetKeyIndex) {
+                pos = readFacetKey(pos);
+            } else if (typeIndex==facetKeyListIndex) {
+                pos = readFacetKeyList(pos);
+            } else {
+                pos = skipAnnotation(pos);
+            }
+        }
+    }
+
+    private int readFacetKeyList(int pos) {
+        int nbPairs = u2(pos + 2);
+        pos += 4;
+        for (int i = 0; i < nbPairs; i++) {
+            int nameIndex = u2(pos);
+            int tag = buf.get(pos + 2);
+            if (tag=='[' && "keys".equals(utf8(nameIndex))) {
+                int nbValues = u2(pos + 3);
+                pos += 5;
+                for (int j = 0; j < nbValues; j++) {
+                    if (buf.get(pos)=='@' && u2(pos + 1)==facetKeyIndex) {
+                        pos = readFacetKey(pos + 1);
+                    } else {
+                        pos = skipElementValue(pos);
+                    }
+                }
+            } else {
+                pos = skipElementValue(pos + 2);
+            }
+        }
+        return pos;
+    }
+
+    private int readFacetKey(int pos) {
+        String name = null;
+        String profileId = null;
+        String targetObjectType = DEFAULT_TARGET_OBJECT_TYPE;
+        int nbPairs = u2(pos + 2);
+        pos += 4;
+        for (int i = 0; i < nbPairs; i++) {
+            String attributeName = utf8(u2(pos));
+            int tag = buf.get(pos + 2);
+            if (tag=='s' && attributeName.equals("name")) {
+                name = utf8(u2(pos + 3));
+            } else if (tag=='s' && attributeName.equals("profileId")) {
+                profileId = utf8(u2(pos + 3));
+            } else if (tag=='c' && attributeName.equals("targetObjectType")) {
+                targetObjectType = toTypeName(utf8(u2(pos + 3)));
+            }
+            pos = skipElementValue(pos + 2);
+        }
+        if (name!=null && profileId!=null && targetObjectType!=null) {
+            descriptors.add(new WideaFacetDescriptor(name, profileId, targetObjectType, className, FdType.Compiled));
+        }
+        return pos;
+    }
+
+    private int skipAnnotation(int pos) {
+        int nbPairs = u2(pos + 2);
+        pos += 4;
+        for (int i = 0; i < nbPairs; i++) {
+            pos = skipElementValue(pos + 2);
+        }
+        return pos;
+    }
+
+    private int skipElementValue(int pos) {
+        int tag = buf.get(pos);
+        switch (tag) {
+            case 'B': case 'C': case 'D': case 'F': case 'I':
+            case 'J': case 'S': case 'Z': case 's': case 'c':
+                return pos + 3;
+            case 'e':
+                return pos + 5;
+            case '@':
+                return skipAnnotation(pos + 1);
+            case '[':
+                int nbValues = u2(pos + 1);
+                pos += 3;
+                for (int i = 0; i < nbValues; i++) {
+                    pos = skipElementValue(pos);
+                }
+                return pos;
+            default:
+                throw new IllegalArgumentException("Unknown element value tag " + (char)tag);
+        }
+    }
+
+    private int u2(int pos) {
+        return buf.getShort(pos) & 0xFFFF;
+    }
+
+    private boolean utf8Equals(int index, byte[] expected) {
+        int pos = cpOffsets[index];
+        if (u2(pos + 1)!=expected.length) {
+            return false;
+        }
+        pos += 3;
+        for (int i = 0; i < expected.length; i++) {
+            if (buf.get(pos + i)!=expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decode the (modified UTF-8) string at passed constant pool index.
+     */
+    private String utf8(int index) {
+        int pos = cpOffsets[index];
+        if ((buf.get(pos) & 0xFF)!=CONSTANT_UTF8) {
+            throw new IllegalArgumentException("Not an UTF8 constant : " + index);
+        }
+        int length = u2(pos + 1);
+        if (chars.length < length) {
+            chars = new char[Math.max(length, chars.length * 2)];
+        }
+        pos += 3;
+        int end = pos + length;
+        int n = 0;
+        while (pos < end) {
+            int b = buf.get(pos++) & 0xFF;
+            if (b < 0x80) {
+                chars[n++] = (char)b;
+            } else if ((b & 0xE0)==0xC0) {
+                chars[n++] = (char)(((b & 0x1F) << 6) | (buf.get(pos++) & 0x3F));
+            } else {
+                int b2 = buf.get(pos++) & 0x3F;
+                int b3 = buf.get(pos++) & 0x3F;
+                chars[n++] = (char)(((b & 0x0F) << 12) | (b2 << 6) | b3);
+            }
+        }
+        return new String(chars, 0, n);
+    }
+
+    /**
+     * Convert an internal name (<code>a/b/C$D</code>) to the canonical name
+     * used by the PSI (<code>a.b.C.D</code>).
+     */
+    static String toClassName(String internalName) {
+        return internalName.replace('/', '.').replace('$', '.');
+    }
+
+    /**
+     * Convert a field descriptor (<code>La/b/C;</code>, <code>[I</code>...) to a type name.
+     */
+    static String toTypeName(String desc) {
+        int dims = 0;
+        while (dims < desc.length() && desc.charAt(dims)=='[') {
+            dims++;
+        }
+        String elementType;
+        char c = dims < desc.length() ? desc.charAt(dims) : 0;
+        switch (c) {
+            case 'L':
+                if (!desc.endsWith(";")) {
+                    return null;
+                }
+                elementType = toClassName(desc.substring(dims + 1, desc.length() - 1));
+                break;
+            case 'Z': elementType = "boolean"; break;
+            case 'B': elementType = "byte"; break;
+            case 'C': elementType = "char"; break;
+            case 'S': elementType = "short"; break;
+            case 'I': elementType = "int"; break;
+            case 'J': elementType = "long"; break;
+            case 'F': elementType = "float"; break;
+            case 'D': elementType = "double"; break;
+            case 'V': elementType = "void"; break;
+            default: return null;
+        }
+        StringBuilder sb = new StringBuilder(elementType);
+        for (int i = 0; i < dims; i++) {
+            sb.append("[]");
+        }
+        return sb.toString();
+    }
+
+}
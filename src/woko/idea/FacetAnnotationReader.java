@@ -0,0 +1,507 @@
+/*
+ * Copyright 2001-2012 Remi Vankeisbelck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package woko.idea;
+
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.*;
+import com.intellij.psi.impl.java.stubs.PsiAnnotationStub;
+import com.intellij.psi.impl.source.PsiFileImpl;
+import com.intellij.psi.impl.source.PsiImmediateClassType;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.psi.util.PsiModificationTracker;
+import org.jetbrains.plugins.groovy.lang.psi.GrReferenceElement;
+import org.jetbrains.plugins.groovy.lang.psi.api.GroovyResolveResult;
+import org.jetbrains.plugins.groovy.lang.psi.api.statements.expressions.GrReferenceExpression;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads the <code>@FacetKey</code> and <code>@FacetKeyList</code> annotations of
+ * facet classes, and creates the corresponding descriptors. Must be used
+ * inside a read action.
+ *
+ * Annotations are read from the stubs when possible (Java sources), so that
+ * scanning does not build the AST of every facet file. The AST is only used
+ * for the values that can't be read from the annotation text (references to
+ * constants, nested classes etc.), or when the <code>woko.idea.astOnly</code>
+ * system property is set (to compare both modes).
+ */
+class FacetAnnotationReader {
+
+    static final String FACET_KEY = "net.sourceforge.jfacets.annotations.FacetKey";
+    static final String FACET_KEY_LIST = "net.sourceforge.jfacets.annotations.FacetKeyList";
+
+    private static final boolean READ_STUBS = !Boolean.getBoolean("woko.idea.astOnly");
+
+    private static final String DEFAULT_TARGET_OBJECT_TYPE = "java.lang.Object";
+
+    private final GlobalSearchScope projectScope;
+    private final GlobalSearchScope allScope;
+    private final JavaPsiFacade psiFacade;
+    private final SmartPointerManager pointerManager;
+    private final PsiConstantEvaluationHelper evaluationHelper;
+    private final PsiModificationTracker modificationTracker;
+
+    private volatile ConstantCache constantCache = null;
+
+    private final AtomicInteger nbStubKeys = new AtomicInteger();
+    private final AtomicInteger nbAstKeys = new AtomicInteger();
+    private final AtomicInteger nbFiles = new AtomicInteger();
+    private final AtomicInteger nbLoadedFiles = new AtomicInteger();
+    private final AtomicLong loadedChars = new AtomicLong();
+    private final AtomicLong stubNanos = new AtomicLong();
+    private final AtomicLong astNanos = new AtomicLong();
+
+    FacetAnnotationReader(Project project) {
+        this.projectScope = GlobalSearchScope.projectScope(project);
+        this.allScope = GlobalSearchScope.allScope(project);
+        this.psiFacade = JavaPsiFacade.getInstance(project);
+        this.pointerManager = SmartPointerManager.getInstance(project);
+        this.evaluationHelper = psiFacade.getConstantEvaluationHelper();
+        this.modificationTracker = PsiManager.getInstance(project).getModificationTracker();
+    }
+
+    /**
+     * Values of the constant fields referenced by the keys, valid as long
+     * as the PSI is not modified. Many keys usually share the same profile
+     * or name constants, which are then resolved and evaluated only once.
+     */
+    private static class ConstantCache {
+
+        private final long modificationCount;
+        private final ConcurrentMap<PsiField,String> values = new ConcurrentHashMap<PsiField, String>();
+        private final ConcurrentMap<String,Boolean> classExists = new ConcurrentHashMap<String, Boolean>();
+
+        ConstantCache(long modificationCount) {
+            this.modificationCount = modificationCount;
+        }
+    }
+
+    private ConstantCache getConstantCache() {
+        long modificationCount = modificationTracker.getModificationCount();
+        ConstantCache cache = constantCache;
+        if (cache==null || cache.modificationCount!=modificationCount) {
+            cache = new ConstantCache(modificationCount);
+            constantCache = cache;
+        }
+        return cache;
+    }
+
+    /**
+     * Drop the cached constants, so that the fields they are
+     * keyed by are not retained once a scan is over, and reset
+     * the statistics.
+     */
+    void clearCaches() {
+        constantCache = null;
+        nbStubKeys.set(0);
+        nbAstKeys.set(0);
+        nbFiles.set(0);
+        nbLoadedFiles.set(0);
+        loadedChars.set(0);
+        stubNanos.set(0);
+        astNanos.set(0);
+    }
+
+    /**
+     * Return how the keys have been read since the caches were last
+     * cleared, how many files had their AST loaded afterwards (with the
+     * size of their text, which the AST memory is proportional to), and
+     * the time spent reading the files with and without an AST. Scanning
+     * with and without <code>woko.idea.astOnly</code> compares both modes.
+     */
+    String getStatistics() {
+        return nbStubKeys.get() + " keys read from stubs, " + nbAstKeys.get() + " from the AST, " +
+                nbLoadedFiles.get() + "/" + nbFiles.get() + " files with an AST loaded (" +
+                loadedChars.get() / 1024 + "KB of text), " + stubNanos.get() / 1000000 + "ms reading files from stubs, " +
+                astNanos.get() / 1000000 + "ms reading files with an AST";
+    }
+
+    private boolean isGroovy(PsiClass psiClass) {
+        return psiClass != null && psiClass.getLanguage().getID().equals("Groovy");
+    }
+
+    /**
+     * Return the descriptors for all the classes in passed file.
+     */
+    List<WideaFacetDescriptor> getFacetDescriptorsForFile(PsiFile psiFile) {
+        List<WideaFacetDescriptor> descriptors = new ArrayList<WideaFacetDescriptor>();
+        if (psiFile instanceof PsiClassOwner) {
+            long start = System.nanoTime();
+            for (PsiClass psiClass : ((PsiClassOwner)psiFile).getClasses()) {
+                descriptors.addAll(getFacetDescriptorsForClass(psiClass));
+            }
+            long nanos = System.nanoTime() - start;
+            nbFiles.incrementAndGet();
+            if (psiFile instanceof PsiFileImpl && ((PsiFileImpl)psiFile).isContentsLoaded()) {
+                nbLoadedFiles.incrementAndGet();
+                loadedChars.addAndGet(psiFile.getTextLength());
+                astNanos.addAndGet(nanos);
+            } else {
+                stubNanos.addAndGet(nanos);
+            }
+        }
+        return descriptors;
+    }
+
+    List<WideaFacetDescriptor> getFacetDescriptorsForClass(PsiClass psiFacetClass) {
+        PsiModifierList modList = psiFacetClass.getModifierList();
+        List<WideaFacetDescriptor> res = new ArrayList<WideaFacetDescriptor>();
+        if (modList!=null) {
+            PsiAnnotation psiFacetKey = getAnnotation(psiFacetClass, FACET_KEY);
+            if (psiFacetKey!=null) {
+                res.add(createDescriptorForKey(new FacetClass(psiFacetClass), psiFacetKey));
+            } else {
+                PsiAnnotation psiFacetKeyList = getAnnotation(psiFacetClass, FACET_KEY_LIST);
+                if (psiFacetKeyList!=null) {
+                    res.addAll(createDescriptorsForKeyList(new FacetClass(psiFacetClass), psiFacetKeyList));
+                }
+            }
+        }
+        // keys that could not be read yield null descriptors
+        res.removeAll(Collections.singleton(null));
+        return res;
+    }
+
+    private List<WideaFacetDescriptor> createDescriptorsForKeyList(FacetClass facetClass, PsiAnnotation psiFacetKeyList) {
+        List<WideaFacetDescriptor> res = createDescriptorsForKeyListFromStub(facetClass, psiFacetKeyList);
+        if (res!=null) {
+            return res;
+        }
+        PsiNameValuePair[] nvps = psiFacetKeyList.getParameterList().getAttributes();
+        res = new ArrayList<WideaFacetDescriptor>();
+        if (nvps.length==1) {
+            PsiNameValuePair nvp = nvps[0];
+            String name = nvp.getName();
+            if (name!=null && name.equals("keys")) {
+                PsiAnnotationMemberValue mv = nvp.getValue();
+                if (mv instanceof PsiArrayInitializerMemberValue) {
+                    PsiArrayInitializerMemberValue v = (PsiArrayInitializerMemberValue)nvp.getValue();
+                    if (v!=null) {
+                        PsiAnnotationMemberValue[] keys = v.getInitializers();
+                        for (PsiAnnotationMemberValue key : keys) {
+                            PsiAnnotation a = (PsiAnnotation)key;
+                            res.add(createDescriptorForKey(facetClass, a));
+                        }
+                    }
+                } else if (mv!=null) {
+                    PsiElement[] children = mv.getChildren();
+                    for (PsiElement child : children) {
+                        if (child instanceof PsiAnnotation) {
+                            res.add(createDescriptorForKey(facetClass, (PsiAnnotation)child));
+                        }
+                    }
+                }
+            }
+        }
+        // the keys have been counted by createDescriptorForKey
+        return res;
+    }
+
+    /**
+     * Read all the keys of the list from the stub.
+     * @return the descriptors, or <code>null</code> if at least one of
+     * the keys can't be read without the AST
+     */
+    private List<WideaFacetDescriptor> createDescriptorsForKeyListFromStub(FacetClass facetClass, PsiAnnotation psiFacetKeyList) {
+        AnnotationText keyList = getAnnotationText(psiFacetKeyList);
+        if (keyList==null) {
+            return null;
+        }
+        List<AnnotationText> keys = keyList.getAnnotationsValue("keys");
+        if (keys==null) {
+            return null;
+        }
+        List<WideaFacetDescriptor> res = new ArrayList<WideaFacetDescriptor>();
+        for (AnnotationText key : keys) {
+            String name = key.getStringValue("name");
+            String profileId = key.getStringValue("profileId");
+            String targetObjectType = getTargetObjectTypeFromStub(facetClass, key);
+            if (name==null || profileId==null || targetObjectType==null) {
+                return null;
+            }
+            // the nested annotations are not stubbed : the keys point to the list
+            res.add(createDescriptor(facetClass, name, profileId, targetObjectType, psiFacetKeyList));
+        }
+        nbStubKeys.addAndGet(res.size());
+        return res;
+    }
+
+    /**
+     * Return the annotation parsed from the text kept in its stub, or <code>null</code>
+     * if the annotation is not stubbed (e.g. Groovy), or its AST is already loaded.
+     */
+    private AnnotationText getAnnotationText(PsiAnnotation annotation) {
+        if (READ_STUBS && annotation instanceof StubBasedPsiElement<?>) {
+            Object stub = ((StubBasedPsiElement<?>)annotation).getStub();
+            if (stub instanceof PsiAnnotationStub) {
+                return AnnotationText.parse(((PsiAnnotationStub)stub).getText());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Resolve the target type of passed key, as written in the
+     * source, through the imports of the facet's file.
+     * @return the fully qualified name of the target type, or
+     * <code>null</code> if it can't be resolved this way
+     */
+    private String getTargetObjectTypeFromStub(FacetClass facetClass, AnnotationText key) {
+        if (!key.hasAttribute("targetObjectType")) {
+            return DEFAULT_TARGET_OBJECT_TYPE;
+        }
+        String className = key.getClassLiteralValue("targetObjectType");
+        if (className==null) {
+            return null;
+        }
+        PsiFile file = facetClass.psiClass.getContainingFile();
+        if (!(file instanceof PsiJavaFile)) {
+            return null;
+        }
+        PsiJavaFile javaFile = (PsiJavaFile)file;
+        int dot = className.indexOf('.');
+        String first = dot==-1 ? className : className.substring(0, dot);
+        String rest = dot==-1 ? "" : className.substring(dot);
+        PsiImportList imports = javaFile.getImportList();
+        if (imports!=null) {
+            PsiImportStatement single = imports.findSingleClassImportStatement(first);
+            if (single!=null && single.getQualifiedName()!=null) {
+                return single.getQualifiedName() + rest;
+            }
+        }
+        if (dot!=-1 && Character.isLowerCase(first.charAt(0))) {
+            // already qualified
+            return classExists(className) ? className : null;
+        }
+        String packageName = javaFile.getPackageName();
+        String inPackage = packageName.length()==0 ? className : packageName + "." + className;
+        if (classExists(inPackage)) {
+            return inPackage;
+        }
+        if (imports!=null) {
+            for (PsiImportStatement imp : imports.getImportStatements()) {
+                if (imp.isOnDemand() && imp.getQualifiedName()!=null) {
+                    String fqcn = imp.getQualifiedName() + "." + className;
+                    if (classExists(fqcn)) {
+                        return fqcn;
+                    }
+                }
+            }
+        }
+        String inJavaLang = "java.lang." + className;
+        return classExists(inJavaLang) ? inJavaLang : null;
+    }
+
+    private boolean classExists(String fqcn) {
+        ConcurrentMap<String,Boolean> classExists = getConstantCache().classExists;
+        Boolean exists = classExists.get(fqcn);
+        if (exists==null) {
+            exists = psiFacade.findClass(fqcn, allScope)!=null;
+            classExists.put(fqcn, exists);
+        }
+        return exists;
+    }
+
+    private String unquote(String text) {
+        return text!=null ? text.replace("\"", "") : null;
+    }
+
+    private String getValueFromResolveResult(ResolveResult rr) {
+        PsiElement elem = rr.getElement();
+        if (elem instanceof PsiField) {
+            return getFieldValue((PsiField)elem);
+        }
+        return null;
+    }
+
+    private String getFieldValue(PsiField field) {
+        ConcurrentMap<PsiField,String> values = getConstantCache().values;
+        String value = values.get(field);
+        if (value==null) {
+            PsiExpression initializer = field.getInitializer();
+            if (initializer==null) {
+                return null;
+            }
+            // the evaluator handles concatenations, references to
+            // other constants, static imports etc.
+            Object constant = evaluationHelper.computeConstantExpression(initializer);
+            value = constant!=null ? constant.toString() : unquote(initializer.getText());
+            if (value!=null) {
+                values.put(field, value);
+            }
+        }
+        return value;
+    }
+
+    private String getNvpValueAsText(PsiAnnotationMemberValue pv) {
+        if (pv!=null) {
+            if (pv instanceof GrReferenceElement<?>) {
+                GrReferenceElement<?> re = (GrReferenceElement<?>)pv;
+                GroovyResolveResult rr = re.advancedResolve();
+                return getValueFromResolveResult(rr);
+            } else if (pv instanceof PsiReferenceExpression) {
+                PsiReferenceExpression re = (PsiReferenceExpression)pv;
+                JavaResolveResult rr = re.advancedResolve(true);
+                return getValueFromResolveResult(rr);
+            } else if (pv instanceof PsiExpression) {
+                // literals and constant expressions (e.g. "prefix_" + NAME)
+                Object constant = evaluationHelper.computeConstantExpression(pv);
+                return constant!=null ? constant.toString() : unquote(pv.getText());
+            } else {
+                return unquote(pv.getText());
+            }
+        }
+        return null;
+    }
+
+    private WideaFacetDescriptor createDescriptorForKey(FacetClass facetClass, PsiAnnotation psiFacetKey) {
+        // read from the stub, and only use the AST for the
+        // values that can't be read this way
+        AnnotationText key = getAnnotationText(psiFacetKey);
+        String name = key!=null ? key.getStringValue("name") : null;
+        String profileId = key!=null ? key.getStringValue("profileId") : null;
+        String targetObjectType = key!=null ? getTargetObjectTypeFromStub(facetClass, key) : null;
+        if (name!=null && profileId!=null && targetObjectType!=null) {
+            nbStubKeys.incrementAndGet();
+        } else {
+            nbAstKeys.incrementAndGet();
+            if (name==null) {
+                name = getNvpValueAsText(psiFacetKey.findAttributeValue("name"));
+            }
+            if (profileId==null) {
+                profileId = getNvpValueAsText(psiFacetKey.findAttributeValue("profileId"));
+            }
+            if (targetObjectType==null) {
+                targetObjectType = getTargetObjectType(psiFacetKey);
+            }
+        }
+        return createDescriptor(facetClass, name, profileId, targetObjectType, psiFacetKey);
+    }
+
+    private String getTargetObjectType(PsiAnnotation psiFacetKey) {
+        String targetObjectType = null;
+        PsiAnnotationMemberValue pv = psiFacetKey.findAttributeValue("targetObjectType");
+        PsiType classType = null;
+        if (pv instanceof PsiClassObjectAccessExpression) {
+            PsiClassObjectAccessExpression cae = (PsiClassObjectAccessExpression)pv;
+            classType = cae.getType();
+        } else if (pv instanceof GrReferenceExpression) {
+            GrReferenceExpression refExpr = (GrReferenceExpression)pv;
+            classType = refExpr.getNominalType();
+        } else if (pv instanceof PsiLiteralExpression) {
+            // don't know why, but in some situations
+            // we get that type of values, which are always null...
+            // happens systematically with code found in dependencies
+            targetObjectType = "UNSUPPORTED YET!";
+        }
+        if (classType instanceof PsiImmediateClassType) {
+            PsiImmediateClassType ict = (PsiImmediateClassType)classType;
+            PsiType[] parameters = ict.getParameters();
+            if (parameters.length==1) {
+                targetObjectType = parameters[0].getCanonicalText();
+            }
+        }
+        return targetObjectType==null ? DEFAULT_TARGET_OBJECT_TYPE : targetObjectType;
+    }
+
+    private WideaFacetDescriptor createDescriptor(
+            FacetClass facetClass,
+            String name,
+            String profileId,
+            String targetObjectType,
+            PsiAnnotation psiFacetKey) {
+        String facetClassName = facetClass.getQualifiedName();
+        if (name!=null && profileId!=null && targetObjectType!=null && facetClassName!=null) {
+            return new WideaFacetDescriptor(
+                    name,
+                    profileId,
+                    targetObjectType,
+                    facetClassName,
+                    facetClass.getType(),
+                    facetClass.getPointer(),
+                    pointerManager.createSmartPsiElementPointer(psiFacetKey));
+        }
+        return null;
+    }
+
+    /**
+     * The class being read : its type and smart pointer are
+     * computed once for all its keys.
+     */
+    private class FacetClass {
+
+        private final PsiClass psiClass;
+        private FdType type = null;
+        private SmartPsiElementPointer<PsiClass> pointer = null;
+
+        FacetClass(PsiClass psiClass) {
+            this.psiClass = psiClass;
+        }
+
+        String getQualifiedName() {
+            return psiClass.getQualifiedName();
+        }
+
+        FdType getType() {
+            if (type==null) {
+                // the class itself, instead of looking it up
+                // again by name in the project scope
+                PsiFile file = psiClass.getContainingFile();
+                VirtualFile vf = file==null ? null : file.getVirtualFile();
+                if (vf==null || !projectScope.contains(vf)) {
+                    type = FdType.Compiled;
+                } else {
+                    type = isGroovy(psiClass) ? FdType.Groovy : FdType.Java;
+                }
+            }
+            return type;
+        }
+
+        SmartPsiElementPointer<PsiClass> getPointer() {
+            if (pointer==null) {
+                pointer = pointerManager.createSmartPsiElementPointer(psiClass);
+            }
+            return pointer;
+        }
+    }
+
+    PsiAnnotation getAnnotation(PsiClass psiClass, String annotFqcn) {
+        PsiModifierList modifierList = psiClass.getModifierList();
+        if (modifierList==null) {
+            return null;
+        }
+        PsiAnnotation[] annots = modifierList.getAnnotations();
+        for (PsiAnnotation a : annots) {
+            String qn = a.getQualifiedName();
+            if (qn!=null) {
+                if (qn.equals(annotFqcn)) {
+                    return a;
+                }
+            }
+        }
+        return null;
+    }
+
+}
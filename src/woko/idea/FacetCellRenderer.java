@@ -13,21 +13,62 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-
 package woko.idea;
 
 import com.intellij.openapi.project.Project;
+import com.intellij.util.ui.UIUtil;
 
 import javax.swing.*;
-import javax.swing.table.DefaultTableCellRenderer;
+import javax.swing.border.Border;
+import javax.swing.table.TableCellRenderer;
 import java.awt.*;
+import java.util.Arrays;
+
+/**
+ * Renderer for the cells of the facets table. Paints the cell itself instead of
+ * configuring a <code>JLabel</code> : the display string of each row (clipped
+ * to the column width) is computed once per snapshot row and column width, and
+ * painting a cell allocates nothing.
+ * <p>
+ * The chars matched by the filter are highlighted, using the ranges computed
+ * by the filter engine (see {@link FacetRowSorter#getMatchRanges(int)}).
+ */
+public class FacetCellRenderer extends JComponent implements TableCellRenderer {
 
-public class FacetCellRenderer extends DefaultTableCellRenderer {
+    private static final String ELLIPSIS = "...";
+    private static final Border NO_FOCUS_BORDER = BorderFactory.createEmptyBorder(1, 1, 1, 1);
+    private static final int ICON_GAP = 4;
+    private static final Color HIGHLIGHT_BACKGROUND = new Color(255, 230, 120);
+    private static final Color HIGHLIGHT_FOREGROUND = Color.BLACK;
 
     private final Project project;
 
+    // state of the cell being rendered
+    private String text;
+    private Icon icon;
+    private Color cellBackground;
+    private Color cellForeground;
+    private Font cellFont;
+    private FacetSnapshot cellSnapshot;
+    private int cellModelRow;
+    private int cellField;
+    private int[] cellMatchRanges;
+
+    // display strings for the snapshot rows, at the cached width
+    private FacetSnapshot cachedSnapshot = null;
+    private int cachedWidth = -1;
+    private FontMetrics cachedMetrics = null;
+    private String[] displayStrings = null;
+
+    private Font metricsFont = null;
+    private FontMetrics metrics = null;
+    private char[] chars = new char[128];
+    private boolean[] highlighted = new boolean[128];
+
     public FacetCellRenderer(Project project) {
         this.project = project;
+        setOpaque(true);
+        setBorder(getNoFocusBorder());
     }
 
     protected WokoProjectComponent wpc() {
@@ -40,12 +81,214 @@ public class FacetCellRenderer extends DefaultTableCellRenderer {
                             boolean isSelected, boolean hasFocus,
                             int row, int column) {
 
-        super.getTableCellRendererComponent(table, value, isSelected, hasFocus, row, column);
+        cellBackground = isSelected ? table.getSelectionBackground() : table.getBackground();
+        cellForeground = isSelected ? table.getSelectionForeground() : table.getForeground();
+        cellFont = table.getFont();
+        // focus borders, as in DefaultTableCellRenderer
+        Border border = null;
+        if (hasFocus) {
+            if (isSelected) {
+                border = UIManager.getBorder("Table.focusSelectedCellHighlightBorder");
+            }
+            if (border==null) {
+                border = UIManager.getBorder("Table.focusCellHighlightBorder");
+            }
+        } else {
+            border = getNoFocusBorder();
+        }
+        setBorder(border);
+        // display strings are cached by snapshot row, when the
+        // model shows a snapshot
+        cellSnapshot = null;
+        cellModelRow = -1;
+        cellMatchRanges = null;
+        if (table.getModel() instanceof FacetDescriptorTableModel && row >= 0) {
+            cellSnapshot = ((FacetDescriptorTableModel)table.getModel()).getStableSnapshot();
+            cellModelRow = table.convertRowIndexToModel(row);
+            if (table.getRowSorter() instanceof FacetRowSorter) {
+                cellMatchRanges = ((FacetRowSorter)table.getRowSorter()).getMatchRanges(cellModelRow);
+            }
+        }
+        // the name, profileId, targetObjectType and facetClass
+        // columns show the searchable fields
+        cellField = table.convertColumnIndexToModel(column) - 1;
+        text = null;
+        icon = null;
         setDisplayValue(table, value, isSelected, hasFocus, row, column);
         return this;
     }
 
     protected void setDisplayValue(JTable table, Object value, boolean selected, boolean hasFocus, int row, int column) {
-        // do nothing by default
+        setText(value==null ? null : value.toString());
+    }
+
+    protected void setText(String text) {
+        this.text = text;
+    }
+
+    protected void setIcon(Icon icon) {
+        this.icon = icon;
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        int width = getWidth();
+        int height = getHeight();
+        g.setColor(cellBackground);
+        g.fillRect(0, 0, width, height);
+        Insets insets = getInsets();
+        int x = insets.left;
+        if (icon!=null) {
+            icon.paintIcon(this, g, x, insets.top + (height - insets.top - insets.bottom - icon.getIconHeight()) / 2);
+            x += icon.getIconWidth() + ICON_GAP;
+        }
+        if (text!=null) {
+            if (cellFont!=metricsFont) {
+                metrics = getFontMetrics(cellFont);
+                metricsFont = cellFont;
+            }
+            String display = getDisplayString(metrics, width - x - insets.right);
+            int length = display.length();
+            if (chars.length < length) {
+                chars = new char[length * 2];
+                highlighted = new boolean[length * 2];
+            }
+            display.getChars(0, length, chars, 0);
+            UIUtil.applyRenderingHints(g);
+            g.setFont(cellFont);
+            int y = insets.top + (height - insets.top - insets.bottom - metrics.getHeight()) / 2 + metrics.getAscent();
+            if (!markHighlighted(length, display==text ? length : length - ELLIPSIS.length())) {
+                g.setColor(cellForeground);
+                g.drawChars(chars, 0, length, x, y);
+            } else {
+                // draw runs of highlighted / not highlighted chars
+                int start = 0;
+                while (start < length) {
+                    boolean h = highlighted[start];
+                    int end = start + 1;
+                    while (end < length && highlighted[end]==h) {
+                        end++;
+                    }
+                    int w = metrics.charsWidth(chars, start, end - start);
+                    if (h) {
+                        g.setColor(HIGHLIGHT_BACKGROUND);
+                        g.fillRect(x, insets.top, w, height - insets.top - insets.bottom);
+                        g.setColor(HIGHLIGHT_FOREGROUND);
+                    } else {
+                        g.setColor(cellForeground);
+                    }
+                    g.drawChars(chars, start, end - start, x, y);
+                    x += w;
+                    start = end;
+                }
+            }
+        }
+    }
+
+    private static Border getNoFocusBorder() {
+        Border border = UIManager.getBorder("Table.cellNoFocusBorder");
+        return border!=null ? border : NO_FOCUS_BORDER;
+    }
+
+    /**
+     * Mark the highlighted chars of the displayed string (the
+     * ellipsis, if any, is not highlighted).
+     * @return <code>true</code> if at least one char is highlighted
+     */
+    private boolean markHighlighted(int length, int visibleLength) {
+        int[] ranges = cellMatchRanges;
+        if (ranges==null) {
+            return false;
+        }
+        Arrays.fill(highlighted, 0, length, false);
+        boolean any = false;
+        for (int i = 0; i + 2 < ranges.length; i += 3) {
+            if (ranges[i]==cellField) {
+                int end = Math.min(ranges[i + 2], visibleLength);
+                for (int c = ranges[i + 1]; c < end; c++) {
+                    highlighted[c] = true;
+                    any = true;
+                }
+            }
+        }
+        return any;
+    }
+
+    /**
+     * Return the text clipped to passed width, from the cache if possible.
+     */
+    private String getDisplayString(FontMetrics fm, int availableWidth) {
+        if (cellSnapshot==null || cellModelRow < 0 || cellModelRow >= cellSnapshot.size()) {
+            return clip(text, fm, availableWidth);
+        }
+        if (cellSnapshot!=cachedSnapshot || availableWidth!=cachedWidth || fm!=cachedMetrics) {
+            if (displayStrings==null || displayStrings.length!=cellSnapshot.size()) {
+                displayStrings = new String[cellSnapshot.size()];
+            } else {
+                Arrays.fill(displayStrings, null);
+            }
+            cachedSnapshot = cellSnapshot;
+            cachedWidth = availableWidth;
+            cachedMetrics = fm;
+        }
+        String display = displayStrings[cellModelRow];
+        if (display==null) {
+            display = clip(text, fm, availableWidth);
+            displayStrings[cellModelRow] = display;
+        }
+        return display;
+    }
+
+    private static String clip(String text, FontMetrics fm, int availableWidth) {
+        if (fm.stringWidth(text) <= availableWidth) {
+            return text;
+        }
+        int available = availableWidth - fm.stringWidth(ELLIPSIS);
+        int length = 0;
+        int width = 0;
+        while (length < text.length()) {
+            int w = fm.charWidth(text.charAt(length));
+            if (width + w > available) {
+                break;
+            }
+            width += w;
+            length++;
+        }
+        return text.substring(0, length) + ELLIPSIS;
     }
+
+    // overridden for performance, as in DefaultTableCellRenderer
+
+    @Override
+    public void invalidate() {
+    }
+
+    @Override
+    public void validate() {
+    }
+
+    @Override
+    public void revalidate() {
+    }
+
+    @Override
+    public void repaint(long tm, int x, int y, int width, int height) {
+    }
+
+    @Override
+    public void repaint(Rectangle r) {
+    }
+
+    @Override
+    public void repaint() {
+    }
+
+    @Override
+    protected void firePropertyChange(String propertyName, Object oldValue, Object newValue) {
+    }
+
+    @Override
+    public void firePropertyChange(String propertyName, boolean oldValue, boolean newValue) {
+    }
+
 }
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2001-2012 Remi Vankeisbelck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package woko.idea;
+
+import java.util.*;
+
+/**
+ * Index of one searchable field of the descriptors : the distinct (lower-cased)
+ * values of the field, sorted, with the rows having each value. Field predicates
+ * are matched against the distinct values instead of the rows, which pays off
+ * for fields like the profile or the target type, that have few distinct values.
+ */
+class FacetColumnIndex {
+
+    private final String[] values;
+    private final int[][] rows;
+    private final int nbRows;
+
+    FacetColumnIndex(List<WideaFacetDescriptor> descriptors, int field) {
+        nbRows = descriptors.size();
+        // rows by value, in row order
+        Map<String,int[]> byValue = new HashMap<String, int[]>();
+        Map<String,Integer> sizes = new HashMap<String, Integer>();
+        for (WideaFacetDescriptor fd : descriptors) {
+            String value = getValue(fd, field);
+            Integer size = sizes.get(value);
+            sizes.put(value, size==null ? 1 : size + 1);
+        }
+        for (Map.Entry<String,Integer> e : sizes.entrySet()) {
+            byValue.put(e.getKey(), new int[e.getValue()]);
+            e.setValue(0);
+        }
+        for (int row = 0; row < nbRows; row++) {
+            String value = getValue(descriptors.get(row), field);
+            int size = sizes.get(value);
+            byValue.get(value)[size] = row;
+            sizes.put(value, size + 1);
+        }
+        values = byValue.keySet().toArray(new String[byValue.size()]);
+        Arrays.sort(values);
+        rows = new int[values.length][];
+        for (int i = 0; i < values.length; i++) {
+            rows[i] = byValue.get(values[i]);
+        }
+    }
+
+    static String getValue(WideaFacetDescriptor fd, int field) {
+        return fd.getSearchKey().substring(fd.getSearchKeyStart(field), fd.getSearchKeyEnd(field));
+    }
+
+    /**
+     * Return the number of distinct values.
+     */
+    int getNbValues() {
+        return values.length;
+    }
+
+    /**
+     * Return the (sorted) rows whose value matches passed pattern.
+     */
+    int[] select(FacetQuery.ValuePattern pattern) {
+        int from = 0;
+        int to = values.length;
+        String prefix = pattern.getPrefix();
+        if (prefix!=null) {
+            // sorted values : the values starting with the prefix are contiguous
+            from = lowerBound(prefix);
+            to = lowerBound(prefix + Character.MAX_VALUE);
+        }
+        int[] single = null;
+        boolean[] selected = null;
+        for (int i = from; i < to; i++) {
+            if (pattern.matches(values[i])) {
+                if (single==null) {
+                    single = rows[i];
+                } else {
+                    if (selected==null) {
+                        selected = new boolean[nbRows];
+                        mark(selected, single);
+                    }
+                    mark(selected, rows[i]);
+                }
+            }
+        }
+        if (single==null) {
+            return new int[0];
+        }
+        if (selected==null) {
+            return single;
+        }
+        int size = 0;
+        for (boolean b : selected) {
+            if (b) {
+                size++;
+            }
+        }
+        int[] res = new int[size];
+        for (int row = 0, i = 0; row < selected.length; row++) {
+            if (selected[row]) {
+                res[i++] = row;
+            }
+        }
+        return res;
+    }
+
+    private static void mark(boolean[] selected, int[] rows) {
+        for (int row : rows) {
+            selected[row] = true;
+        }
+    }
+
+    private int lowerBound(String s) {
+        int lo = 0, hi = values.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (values[mid].compareTo(s) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+}
@@ -16,62 +16,192 @@
 
 package woko.idea;
 
-import com.intellij.openapi.project.Project;
-
 import javax.swing.table.AbstractTableModel;
-import java.util.List;
+import java.util.HashMap;
+import java.util.Map;
 
+/**
+ * Table model backed by an immutable {@link FacetSnapshot}. Installing a new
+ * snapshot fires row events for the rows that have been inserted, deleted
+ * or updated, instead of a "data changed" event. Must be used in the EDT.
+ */
 class FacetDescriptorTableModel extends AbstractTableModel {
 
-    private final Project project;
-
     private static final String[] COLUMNS = new String[] { "type", "name", "profileId", "targetObjectType", "facetClass" };
 
-    FacetDescriptorTableModel(Project project) {
-        this.project = project;
-    }
+    // above this number of events, a single "data changed" event is cheaper
+    private static final int MAX_ROW_EVENTS = 64;
 
-    private WokoProjectComponent wpc() {
-        return project.getComponent(WokoProjectComponent.class);
-    }
+    private static final int INSERTED = 0;
+    private static final int DELETED = 1;
+    private static final int UPDATED = 2;
+
+    private FacetSnapshot snapshot = FacetSnapshot.EMPTY;
+
+    // while the row events are fired, the model shows the new snapshot's rows
+    // before splitNew, followed by the previous snapshot's rows from splitOld
+    private FacetSnapshot previous = null;
+    private int splitNew = 0;
+    private int splitOld = 0;
 
     @Override
     public String getColumnName(int i) {
         return COLUMNS[i];
     }
 
-    private List<WideaFacetDescriptor> getFds() {
-        return wpc().getFacetDescriptors();
-    }
-
     public int getRowCount() {
-        return getFds().size();
+        if (previous!=null) {
+            return splitNew + previous.size() - splitOld;
+        }
+        return snapshot.size();
     }
 
     public int getColumnCount() {
-        return 5;
+        return COLUMNS.length;
     }
 
     public Object getValueAt(int row, int col) {
-        WideaFacetDescriptor fd = getFacetDescriptorAt(row);
-        if (fd==null) {
-            return null;
-        }
-        switch (col) {
-            case 0 : return fd.getType();
-            case 1 : return fd.getName();
-            case 2 : return fd.getProfileId();
-            case 3 : return fd.getTargetObjectTypeName();
-            case 4 : return fd.getFacetClassName();
-            default: throw new ArrayIndexOutOfBoundsException("col is out of bounds : " + col);
+        if (previous!=null && row >= splitNew) {
+            return previous.getValueAt(row - splitNew + splitOld, col);
         }
+        return snapshot.getValueAt(row, col);
     }
 
     public WideaFacetDescriptor getFacetDescriptorAt(int row) {
-        List<WideaFacetDescriptor> facetDescriptors = getFds();
-        if (row>=facetDescriptors.size()) {
-            return null;
+        if (previous!=null && row >= splitNew) {
+            return previous.getDescriptor(row - splitNew + splitOld);
+        }
+        return row < snapshot.size() ? snapshot.getDescriptor(row) : null;
+    }
+
+    FacetSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Return the snapshot if the model shows it, or <code>null</code> while
+     * the row events are fired (the model then shows intermediate rows).
+     */
+    FacetSnapshot getStableSnapshot() {
+        return previous==null ? snapshot : null;
+    }
+
+    /**
+     * Install passed snapshot, and fire the row events to go from
+     * the previous snapshot to the new one.
+     */
+    void setSnapshot(FacetSnapshot newSnapshot) {
+        FacetSnapshot oldSnapshot = snapshot;
+        if (newSnapshot==oldSnapshot) {
+            return;
+        }
+        int[] events = diff(oldSnapshot, newSnapshot);
+        snapshot = newSnapshot;
+        if (events==null) {
+            fireTableDataChanged();
+            return;
+        }
+        // replay the events, the model showing the
+        // intermediate rows for each of them
+        previous = oldSnapshot;
+        try {
+            for (int e = 0; e < events.length; e += 5) {
+                splitNew = events[e + 3];
+                splitOld = events[e + 4];
+                int first = events[e + 1];
+                int last = first + events[e + 2] - 1;
+                switch (events[e]) {
+                    case INSERTED : fireTableRowsInserted(first, last); break;
+                    case DELETED : fireTableRowsDeleted(first, last); break;
+                    default: fireTableRowsUpdated(first, last); break;
+                }
+            }
+        } finally {
+            previous = null;
         }
-        return facetDescriptors.get(row);
     }
+
+    /**
+     * Compute the row events between passed snapshots, descriptors being matched
+     * by key. Events are (kind, first row, nb rows, splitNew, splitOld) tuples, in
+     * the order they have to be fired.
+     * @return the events, or <code>null</code> if there are too many of them
+     */
+    private static int[] diff(FacetSnapshot oldSnapshot, FacetSnapshot newSnapshot) {
+        int oldSize = oldSnapshot.size();
+        int newSize = newSnapshot.size();
+        Map<WideaFacetDescriptor,Integer> oldRows = new HashMap<WideaFacetDescriptor, Integer>(oldSize * 2);
+        for (int i = 0; i < oldSize; i++) {
+            oldRows.put(oldSnapshot.getDescriptor(i), i);
+        }
+        Map<WideaFacetDescriptor,Integer> newRows = new HashMap<WideaFacetDescriptor, Integer>(newSize * 2);
+        for (int j = 0; j < newSize; j++) {
+            newRows.put(newSnapshot.getDescriptor(j), j);
+        }
+        int[] events = new int[MAX_ROW_EVENTS * 5];
+        int nbEvents = 0;
+        int i = 0, j = 0;
+        while (i < oldSize || j < newSize) {
+            int firstOld = i;
+            int firstNew = j;
+            int kind;
+            if (i < oldSize && j < newSize && isSame(oldSnapshot, i, newSnapshot, j)) {
+                if (oldSnapshot.getType(i)==newSnapshot.getType(j)) {
+                    i++;
+                    j++;
+                    continue;
+                }
+                // same descriptor, but its type has changed
+                while (i < oldSize
+                        && j < newSize
+                        && isSame(oldSnapshot, i, newSnapshot, j)
+                        && oldSnapshot.getType(i)!=newSnapshot.getType(j)) {
+                    i++;
+                    j++;
+                }
+                kind = UPDATED;
+            } else if (i < oldSize && isMissing(newRows, oldSnapshot.getDescriptor(i), j)) {
+                while (i < oldSize && isMissing(newRows, oldSnapshot.getDescriptor(i), j)) {
+                    i++;
+                }
+                kind = DELETED;
+            } else if (j < newSize && isMissing(oldRows, newSnapshot.getDescriptor(j), i)) {
+                while (j < newSize && isMissing(oldRows, newSnapshot.getDescriptor(j), i)) {
+                    j++;
+                }
+                kind = INSERTED;
+            } else {
+                // moved down : deleted here, inserted later
+                i++;
+                kind = DELETED;
+            }
+            if (nbEvents==MAX_ROW_EVENTS) {
+                return null;
+            }
+            int e = nbEvents * 5;
+            events[e] = kind;
+            events[e + 1] = firstNew;
+            events[e + 2] = kind==DELETED ? i - firstOld : j - firstNew;
+            events[e + 3] = j;
+            events[e + 4] = i;
+            nbEvents++;
+        }
+        int[] res = new int[nbEvents * 5];
+        System.arraycopy(events, 0, res, 0, res.length);
+        return res;
+    }
+
+    private static boolean isSame(FacetSnapshot oldSnapshot, int i, FacetSnapshot newSnapshot, int j) {
+        return oldSnapshot.getDescriptor(i).equals(newSnapshot.getDescriptor(j));
+    }
+
+    /**
+     * Return <code>true</code> if the descriptor isn't in the other snapshot, or
+     * if its row there is before passed position (it has already been handled).
+     */
+    private static boolean isMissing(Map<WideaFacetDescriptor,Integer> otherRows, WideaFacetDescriptor fd, int position) {
+        Integer row = otherRows.get(fd);
+        return row==null || row < position;
+    }
+
 }
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2001-2012 Remi Vankeisbelck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package woko.idea;
+
+/**
+ * Computes the rows matching the filter of the tool window (see {@link FacetQuery}),
+ * and their scores. Remembers the last query and its result, so that narrowing the
+ * query (e.g. typing one more char) only checks the rows that matched the previous one.
+ */
+class FacetFilterEngine {
+
+    /**
+     * Matching rows (sorted in model order), their scores, and
+     * their matched chars.
+     */
+    static class Result {
+
+        private final int[] rows;
+        private final int[] scores;
+        private final int[][] matchRanges;
+
+        Result(int[] rows, int[] scores, int[][] matchRanges) {
+            this.rows = rows;
+            this.scores = scores;
+            this.matchRanges = matchRanges;
+        }
+
+        int[] getRows() {
+            return rows;
+        }
+
+        /**
+         * @return the score of each row, or <code>null</code> if the
+         * rows have not been scored (no free text in the query)
+         */
+        int[] getScores() {
+            return scores;
+        }
+
+        /**
+         * @return the chars matched in each row as (field, start, end) triples
+         * (see {@link FacetMatcher#getMatchRanges()}), or <code>null</code> if
+         * the query doesn't match chars
+         */
+        int[][] getMatchRanges() {
+            return matchRanges;
+        }
+    }
+
+    private FacetSearchIndex lastIndex = null;
+    private FacetQuery lastQuery = null;
+    private boolean lastIncludeLibs = false;
+    private Result lastResult = null;
+
+    /**
+     * Return the rows of the index's descriptors that match passed filter text.
+     */
+    synchronized Result filter(FacetSearchIndex index, String filterText, boolean includeLibs) {
+        FacetQuery query = FacetQuery.parse(filterText);
+        Result result;
+        boolean sameRows = index==lastIndex && includeLibs==lastIncludeLibs;
+        if (sameRows && query.equals(lastQuery)) {
+            result = lastResult;
+        } else if (sameRows && query.narrows(lastQuery)) {
+            // can only match rows that matched the previous query
+            result = query.evaluate(index, lastResult.getRows());
+        } else {
+            int[] rows = index.getAllRows();
+            if (!includeLibs) {
+                rows = FacetSearchIndex.minus(rows, index.getRowsOfType(FdType.Compiled));
+            }
+            result = query.evaluate(index, rows);
+        }
+        lastIndex = index;
+        lastQuery = query;
+        lastIncludeLibs = includeLibs;
+        lastResult = result;
+        return result;
+    }
+
+}
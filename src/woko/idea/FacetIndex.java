@@ -0,0 +1,188 @@
+/*
+ * Copyright 2001-2012 Remi Vankeisbelck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package woko.idea;
+
+import java.util.*;
+
+/**
+ * Per-project index of the facets found in the configured packages, keyed
+ * by file path. Each entry keeps the time stamp of the file when it was parsed,
+ * so that unchanged files don't have to be parsed again, and the rank of the
+ * configured package it belongs to, so that JFacets' "first scanned wins" policy
+ * can be re-applied when merging the entries.
+ */
+class FacetIndex {
+
+    static class FileEntry {
+
+        private final String path;
+        private final long stamp;
+        private final int packageRank;
+        private final List<WideaFacetDescriptor> descriptors;
+
+        FileEntry(String path, long stamp, int packageRank, List<WideaFacetDescriptor> descriptors) {
+            this.path = path;
+            this.stamp = stamp;
+            this.packageRank = packageRank;
+            this.descriptors = descriptors;
+        }
+
+        String getPath() {
+            return path;
+        }
+
+        long getStamp() {
+            return stamp;
+        }
+
+        int getPackageRank() {
+            return packageRank;
+        }
+
+        List<WideaFacetDescriptor> getDescriptors() {
+            return descriptors;
+        }
+
+        FileEntry withPackageRank(int rank) {
+            return rank==packageRank ? this : new FileEntry(path, stamp, rank, descriptors);
+        }
+    }
+
+    private static final Comparator<FileEntry> SCAN_ORDER = new Comparator<FileEntry>() {
+        @Override
+        public int compare(FileEntry e1, FileEntry e2) {
+            if (e1.packageRank!=e2.packageRank) {
+                return e1.packageRank < e2.packageRank ? -1 : 1;
+            }
+            return e1.path.compareTo(e2.path);
+        }
+    };
+
+    private List<String> packages = Collections.emptyList();
+    private Map<String,FileEntry> entries = new HashMap<String, FileEntry>();
+    private List<WideaFacetDescriptor> merged = null;
+    private Map<String,List<WideaFacetDescriptor>> mergedByName = null;
+
+    synchronized List<String> getPackages() {
+        return packages;
+    }
+
+    synchronized boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    synchronized Collection<FileEntry> getEntries() {
+        return new ArrayList<FileEntry>(entries.values());
+    }
+
+    synchronized FileEntry get(String path) {
+        return entries.get(path);
+    }
+
+    /**
+     * Replace the whole index (after a full scan).
+     */
+    synchronized void reset(List<String> packages, Map<String,FileEntry> entries) {
+        this.packages = packages;
+        this.entries = new HashMap<String, FileEntry>(entries);
+        this.merged = null;
+    }
+
+    synchronized void put(FileEntry entry) {
+        entries.put(entry.getPath(), entry);
+        merged = null;
+    }
+
+    /**
+     * Remove the entry for passed path, and the entries of all the files below
+     * it if the path is a directory.
+     * @return <code>true</code> if at least one entry has been removed
+     */
+    synchronized boolean remove(String path) {
+        boolean removed = entries.remove(path)!=null;
+        String dirPrefix = path.endsWith("/") ? path : path + "/";
+        for (Iterator<String> it = entries.keySet().iterator(); it.hasNext(); ) {
+            if (it.next().startsWith(dirPrefix)) {
+                it.remove();
+                removed = true;
+            }
+        }
+        if (removed) {
+            merged = null;
+        }
+        return removed;
+    }
+
+    /**
+     * Return the rank of the first configured package that contains
+     * the passed package, or <code>-1</code> if the package is not scanned.
+     */
+    synchronized int getPackageRank(String packageName) {
+        return getPackageRank(packages, packageName);
+    }
+
+    static int getPackageRank(List<String> packages, String packageName) {
+        for (int i = 0; i < packages.size(); i++) {
+            String p = packages.get(i);
+            if (packageName.equals(p) || packageName.startsWith(p + ".")) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Merge all entries in scan order, discarding the descriptors that
+     * have already been found in previously scanned packages.
+     */
+    synchronized List<WideaFacetDescriptor> getDescriptors() {
+        if (merged==null) {
+            List<FileEntry> sorted = new ArrayList<FileEntry>(entries.values());
+            Collections.sort(sorted, SCAN_ORDER);
+            // insertion-ordered set : the first descriptor added for
+            // a key is kept, the later duplicates are ignored
+            Set<WideaFacetDescriptor> descriptors = new LinkedHashSet<WideaFacetDescriptor>();
+            for (FileEntry entry : sorted) {
+                descriptors.addAll(entry.getDescriptors());
+            }
+            merged = Collections.unmodifiableList(new ArrayList<WideaFacetDescriptor>(descriptors));
+            mergedByName = null;
+        }
+        return merged;
+    }
+
+    /**
+     * Return the merged descriptors grouped by facet name, in scan order.
+     */
+    synchronized Map<String,List<WideaFacetDescriptor>> getDescriptorsByName() {
+        List<WideaFacetDescriptor> descriptors = getDescriptors();
+        if (mergedByName==null) {
+            Map<String,List<WideaFacetDescriptor>> byName = new HashMap<String, List<WideaFacetDescriptor>>();
+            for (WideaFacetDescriptor fd : descriptors) {
+                List<WideaFacetDescriptor> sameName = byName.get(fd.getName());
+                if (sameName==null) {
+                    sameName = new ArrayList<WideaFacetDescriptor>(1);
+                    byName.put(fd.getName(), sameName);
+                }
+                sameName.add(fd);
+            }
+            mergedByName = Collections.unmodifiableMap(byName);
+        }
+        return mergedByName;
+    }
+
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2001-2012 Remi Vankeisbelck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package woko.idea;
+
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Saves/loads the facet index to/from a binary file in the IDE's
+ * system directory, so that the facets can be listed as soon as the
+ * project is opened. Strings (profiles, target types etc.) are written
+ * once in a string table and referenced by index.
+ */
+class FacetIndexStore {
+
+    private static final Logger LOG = Logger.getInstance("#woko.idea.FacetIndexStore");
+
+    private static final int MAGIC = 0x574F4B4F; // "WOKO"
+    private static final int VERSION = 2;
+
+    private final StringTableFile file;
+
+    FacetIndexStore(Project project) {
+        File dir = new File(PathManager.getSystemPath(), "woko");
+        this.file = new StringTableFile(new File(dir, project.getLocationHash() + ".facets"), MAGIC, VERSION);
+    }
+
+    /**
+     * Load the index from disk.
+     * @return <code>true</code> if the index has been loaded, <code>false</code> if
+     * there is no stored index, or if it can't be read
+     */
+    boolean load(final FacetIndex index) {
+        try {
+            return file.read(new StringTableFile.Reader() {
+                @Override
+                public void read(DataInputStream in, String[] strings) throws IOException {
+                    int nbPackages = in.readInt();
+                    List<String> packages = new ArrayList<String>(nbPackages);
+                    for (int i = 0; i < nbPackages; i++) {
+                        packages.add(strings[in.readInt()]);
+                    }
+                    FdType[] types = FdType.values();
+                    int nbEntries = in.readInt();
+                    Map<String,FacetIndex.FileEntry> entries = new HashMap<String, FacetIndex.FileEntry>(nbEntries * 2);
+                    for (int i = 0; i < nbEntries; i++) {
+                        String path = strings[in.readInt()];
+                        long stamp = in.readLong();
+                        int rank = in.readInt();
+                        int nbDescriptors = in.readInt();
+                        List<WideaFacetDescriptor> descriptors = new ArrayList<WideaFacetDescriptor>(nbDescriptors);
+                        for (int j = 0; j < nbDescriptors; j++) {
+                            FdType type = types[in.readByte()];
+                            descriptors.add(StringTableFile.readDescriptor(in, strings, type));
+                        }
+                        entries.put(path, new FacetIndex.FileEntry(path, stamp, rank, descriptors));
+                    }
+                    index.reset(Collections.unmodifiableList(packages), entries);
+                }
+            });
+        } catch(Exception e) {
+            // corrupted or unreadable : will be rebuilt
+            LOG.info("Unable to read facet index from " + file.getFile(), e);
+            return false;
+        }
+    }
+
+    /**
+     * Save the index. Called from a pooled thread after a scan, and from the
+     * EDT when the project is closed : the writes are serialized by the file.
+     */
+    void save(FacetIndex index) {
+        final List<String> packages = index.getPackages();
+        final Collection<FacetIndex.FileEntry> entries = index.getEntries();
+        try {
+            file.write(new StringTableFile.Writer() {
+                @Override
+                public void addStrings(StringTableFile.Strings strings) {
+                    for (String p : packages) {
+                        strings.add(p);
+                    }
+                    for (FacetIndex.FileEntry entry : entries) {
+                        strings.add(entry.getPath());
+                        for (WideaFacetDescriptor fd : entry.getDescriptors()) {
+                            strings.addDescriptor(fd);
+                        }
+                    }
+                }
+
+                @Override
+                public void write(DataOutputStream out, StringTableFile.Strings strings) throws IOException {
+                    out.writeInt(packages.size());
+                    for (String p : packages) {
+                        strings.write(out, p);
+                    }
+                    out.writeInt(entries.size());
+                    for (FacetIndex.FileEntry entry : entries) {
+                        strings.write(out, entry.getPath());
+                        out.writeLong(entry.getStamp());
+                        out.writeInt(entry.getPackageRank());
+                        List<WideaFacetDescriptor> descriptors = entry.getDescriptors();
+                        out.writeInt(descriptors.size());
+                        for (WideaFacetDescriptor fd : descriptors) {
+                            out.writeByte(fd.getType().ordinal());
+                            strings.writeDescriptor(out, fd);
+                        }
+                    }
+                }
+            });
+        } catch(IOException e) {
+            LOG.warn("Unable to write facet index to " + file.getFile(), e);
+        }
+    }
+
+}
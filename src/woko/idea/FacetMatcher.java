@@ -0,0 +1,264 @@
+/*
+ * Copyright 2001-2012 Remi Vankeisbelck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package woko.idea;
+
+/**
+ * Fuzzy matcher for the facets filter. Matches the (lower-cased) pattern as a
+ * subsequence of each searchable field of a descriptor, and scores the match :
+ * characters matched at word boundaries or camel humps (e.g. "rvJs" in
+ * "RenderPropertyValueJson"), and consecutive characters, score higher,
+ * gaps score lower. Plain substrings get the best scores.
+ * <p>
+ * A matcher is created once per query and reuses its buffers, so scoring
+ * does not allocate. The score matrix of the best field is kept, so that the
+ * matched chars can be found without matching again. Not thread-safe.
+ */
+class FacetMatcher {
+
+    static final int NO_MATCH = 0;
+
+    private static final int MATCH = 16;
+    private static final int BOUNDARY_BONUS = 10;
+    private static final int CONSECUTIVE_BONUS = 6;
+    private static final int GAP_PENALTY = 1;
+    private static final int NEG = Integer.MIN_VALUE / 2;
+
+    private final char[] pattern;
+    private final long charMask;
+    // score matrix of the field being matched, and of the best field so far
+    // (pattern.length rows of n columns) : kept to find the matched chars
+    private int[] matrix = new int[256];
+    private int[] bestMatrix = new int[256];
+    private int bestField = -1;
+    private WideaFacetDescriptor bestDescriptor = null;
+
+    FacetMatcher(String lowerCasePattern) {
+        this.pattern = lowerCasePattern.toCharArray();
+        this.charMask = charMask(lowerCasePattern, 0, lowerCasePattern.length());
+    }
+
+    /**
+     * Return a mask of the chars in passed (lower-cased) range : a candidate
+     * can only match if its mask contains the pattern's mask.
+     */
+    static long charMask(String lowerCase, int from, int to) {
+        long mask = 0;
+        for (int i = from; i < to; i++) {
+            char c = lowerCase.charAt(i);
+            if (c >= 'a' && c <= 'z') {
+                mask |= 1L << (c - 'a');
+            } else if (c >= '0' && c <= '9') {
+                mask |= 1L << (26 + c - '0');
+            } else if (c=='.') {
+                mask |= 1L << 36;
+            } else if (c=='_') {
+                mask |= 1L << 37;
+            }
+        }
+        return mask;
+    }
+
+    long getCharMask() {
+        return charMask;
+    }
+
+    /**
+     * Return the score of the best matching field of the descriptor,
+     * or {@link #NO_MATCH}.
+     */
+    int score(WideaFacetDescriptor fd) {
+        int best = NO_MATCH;
+        bestField = -1;
+        bestDescriptor = fd;
+        for (int field = 0; field < WideaFacetDescriptor.NB_SEARCH_FIELDS; field++) {
+            int score = scoreField(fd, field);
+            if (score > best) {
+                best = score;
+                bestField = field;
+                // keep the matrix of the best field
+                int[] tmp = bestMatrix;
+                bestMatrix = matrix;
+                matrix = tmp;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Return the chars matched in the best field by the last call to
+     * {@link #score(WideaFacetDescriptor)}, as (field, start, end) triples
+     * of consecutive chars, start and end being relative to the field.
+     * @return the ranges, or <code>null</code> if there was no match, or if
+     * the field's chars don't map to the lower-cased ones
+     */
+    int[] getMatchRanges() {
+        WideaFacetDescriptor fd = bestDescriptor;
+        int field = bestField;
+        if (fd==null || field==-1) {
+            return null;
+        }
+        String key = fd.getSearchKey();
+        int from = fd.getSearchKeyStart(field);
+        int n = fd.getSearchKeyEnd(field) - from;
+        String original = fd.getSearchField(field);
+        if (original.length()!=n) {
+            return null;
+        }
+        int m = pattern.length;
+        // last matched char : best score of the last row
+        int j = 0;
+        int last = (m - 1) * n;
+        for (int k = 1; k < n; k++) {
+            if (bestMatrix[last + k] > bestMatrix[last + j]) {
+                j = k;
+            }
+        }
+        // walk back the matrix to find the other matched chars
+        int[] positions = new int[m];
+        positions[m - 1] = j;
+        for (int i = m - 1; i > 0; i--) {
+            int row = i * n;
+            int prevRow = row - n;
+            int target = bestMatrix[row + j] - MATCH - bonus(key, from, j, original);
+            int k = j - 1;
+            if (bestMatrix[prevRow + k] + CONSECUTIVE_BONUS!=target) {
+                while (k >= 0 && (bestMatrix[prevRow + k] <= NEG
+                        || bestMatrix[prevRow + k] - GAP_PENALTY * (j - 1 - k)!=target)) {
+                    k--;
+                }
+            }
+            j = k;
+            positions[i - 1] = j;
+        }
+        // consecutive positions as ranges
+        int nbRanges = 1;
+        for (int i = 1; i < m; i++) {
+            if (positions[i]!=positions[i - 1] + 1) {
+                nbRanges++;
+            }
+        }
+        int[] ranges = new int[nbRanges * 3];
+        int r = 0;
+        ranges[0] = field;
+        ranges[1] = positions[0];
+        for (int i = 1; i < m; i++) {
+            if (positions[i]!=positions[i - 1] + 1) {
+                ranges[r + 2] = positions[i - 1] + 1;
+                r += 3;
+                ranges[r] = field;
+                ranges[r + 1] = positions[i];
+            }
+        }
+        ranges[r + 2] = positions[m - 1] + 1;
+        return ranges;
+    }
+
+    /**
+     * Return the score of the match in passed field of the
+     * descriptor, or {@link #NO_MATCH}.
+     */
+    int scoreField(WideaFacetDescriptor fd, int field) {
+        String key = fd.getSearchKey();
+        int from = fd.getSearchKeyStart(field);
+        int n = fd.getSearchKeyEnd(field) - from;
+        int m = pattern.length;
+        if (m==0) {
+            return NO_MATCH;
+        }
+        if (n < m) {
+            return NO_MATCH;
+        }
+        // original field is used to find camel humps, if
+        // lower-casing didn't change its length
+        String original = fd.getSearchField(field);
+        if (original.length()!=n) {
+            original = null;
+        }
+        if (matrix.length < m * n) {
+            matrix = new int[m * n * 2];
+        }
+        // matrix[i * n + j] : best score with pattern[0..i]
+        // matched, pattern[i] being at j
+        for (int i = 0; i < m; i++) {
+            char pc = pattern[i];
+            int row = i * n;
+            int prevRow = row - n;
+            int run = NEG;
+            boolean any = false;
+            for (int j = 0; j < n; j++) {
+                if (i > 0 && j > 0) {
+                    // best previous match before j, penalized by the gap
+                    int p = matrix[prevRow + j - 1];
+                    run = run > NEG ? run - GAP_PENALTY : NEG;
+                    if (p > run) {
+                        run = p;
+                    }
+                }
+                if (key.charAt(from + j)!=pc) {
+                    matrix[row + j] = NEG;
+                    continue;
+                }
+                int best;
+                if (i==0) {
+                    best = 0;
+                } else {
+                    best = run;
+                    if (j > 0 && matrix[prevRow + j - 1] > NEG && matrix[prevRow + j - 1] + CONSECUTIVE_BONUS > best) {
+                        best = matrix[prevRow + j - 1] + CONSECUTIVE_BONUS;
+                    }
+                }
+                if (best <= NEG) {
+                    matrix[row + j] = NEG;
+                } else {
+                    matrix[row + j] = best + MATCH + bonus(key, from, j, original);
+                    any = true;
+                }
+            }
+            if (!any) {
+                return NO_MATCH;
+            }
+        }
+        int best = NEG;
+        int last = (m - 1) * n;
+        for (int j = 0; j < n; j++) {
+            if (matrix[last + j] > best) {
+                best = matrix[last + j];
+            }
+        }
+        return best <= NO_MATCH ? 1 : best;
+    }
+
+    private static int bonus(String key, int from, int j, String original) {
+        if (j==0) {
+            return BOUNDARY_BONUS + 2;
+        }
+        char p = key.charAt(from + j - 1);
+        if (p=='.' || p=='_' || p=='-' || p=='$' || p=='/' || p==' ') {
+            return BOUNDARY_BONUS;
+        }
+        if (original!=null
+                && Character.isUpperCase(original.charAt(j))
+                && !Character.isUpperCase(original.charAt(j - 1))) {
+            // camel hump
+            return BOUNDARY_BONUS;
+        }
+        if (Character.isDigit(key.charAt(from + j)) && !Character.isDigit(p)) {
+            return BOUNDARY_BONUS / 2;
+        }
+        return 0;
+    }
+
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2001-2012 Remi Vankeisbelck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package woko.idea;
+
+import java.util.*;
+
+/**
+ * Finds out how the facets with the same name relate to each other :
+ * <ul>
+ *     <li>shadowed : another facet has the same key and is scanned first, JFacets never uses it</li>
+ *     <li>unknown target type : no object can ever match it</li>
+ *     <li>overrides : the facets it takes precedence over. For the same profile, the
+ *     facets for a super type. For a more specific profile than the root one, the
+ *     facets of the root profile for the same type, a super type or a sub type</li>
+ * </ul>
+ * Facets only relate to the facets with the same name, so the analysis is done
+ * (lazily) per name, and the results of a name are kept as long as the facets
+ * with this name and the hierarchies of their target types don't change : editing
+ * a file re-analyzes the names of its facets, and a change to the structure of the
+ * Java code re-analyzes the names whose target type hierarchies changed (the
+ * hierarchies of all the target types are checked again).
+ * <p>
+ * The profile hierarchy is not known : only the root profile is compared with
+ * the other profiles, and no override is reported between two other profiles.
+ */
+class FacetOverrideAnalysis {
+
+    static class Result {
+
+        private WideaFacetDescriptor shadowedBy = null;
+        private boolean unknownTargetType = false;
+        private final List<WideaFacetDescriptor> overrides = new ArrayList<WideaFacetDescriptor>();
+        private final List<WideaFacetDescriptor> overriddenBy = new ArrayList<WideaFacetDescriptor>();
+
+        /**
+         * The facet with the same key, scanned first, <code>null</code> if none.
+         */
+        WideaFacetDescriptor getShadowedBy() {
+            return shadowedBy;
+        }
+
+        boolean isUnknownTargetType() {
+            return unknownTargetType;
+        }
+
+        /**
+         * Return <code>true</code> if JFacets can never use the facet.
+         */
+        boolean isUnreachable() {
+            return shadowedBy!=null || unknownTargetType;
+        }
+
+        List<WideaFacetDescriptor> getOverrides() {
+            return overrides;
+        }
+
+        List<WideaFacetDescriptor> getOverriddenBy() {
+            return overriddenBy;
+        }
+    }
+
+    /**
+     * The target types of the facets with a name, and what the analysis of this
+     * name has been computed from : its facets, and the type hierarchy of each
+     * target type.
+     */
+    private static class NameAnalysis {
+
+        private final List<WideaFacetDescriptor> descriptors;
+        private final Map<String,List<String>> supertypes;
+        private final Map<String,Boolean> knownTypes;
+        private final Map<WideaFacetDescriptor,Result> results;
+        // hierarchy modification count the supertypes have last been checked for
+        private volatile long modificationCount;
+
+        NameAnalysis(
+                List<WideaFacetDescriptor> descriptors,
+                Map<String,List<String>> supertypes,
+                Map<String,Boolean> knownTypes,
+                Map<WideaFacetDescriptor,Result> results,
+                long modificationCount) {
+            this.descriptors = descriptors;
+            this.supertypes = supertypes;
+            this.knownTypes = knownTypes;
+            this.results = results;
+            this.modificationCount = modificationCount;
+        }
+
+        boolean isValid(List<WideaFacetDescriptor> current, long currentModificationCount, FacetResolver.TypeHierarchy hierarchy) {
+            if (!isSameDescriptors(current)) {
+                return false;
+            }
+            if (modificationCount==currentModificationCount) {
+                return true;
+            }
+            // the Java structure changed somewhere : still valid
+            // if the hierarchies of the target types didn't change
+            for (Map.Entry<String,List<String>> e : supertypes.entrySet()) {
+                String type = e.getKey();
+                if (!hierarchy.getSupertypes(type).equals(e.getValue())
+                        || hierarchy.isKnownType(type)!=knownTypes.get(type)) {
+                    return false;
+                }
+            }
+            modificationCount = currentModificationCount;
+            return true;
+        }
+
+        private boolean isSameDescriptors(List<WideaFacetDescriptor> current) {
+            if (descriptors==current) {
+                return true;
+            }
+            if (descriptors.size()!=current.size()) {
+                return false;
+            }
+            // unchanged files keep the same descriptor instances
+            for (int i = 0; i < descriptors.size(); i++) {
+                if (descriptors.get(i)!=current.get(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private final FacetResolver.TypeHierarchy hierarchy;
+    private final Map<String,NameAnalysis> analyses = new HashMap<String, NameAnalysis>();
+
+    FacetOverrideAnalysis(FacetResolver.TypeHierarchy hierarchy) {
+        this.hierarchy = hierarchy;
+    }
+
+    /**
+     * Return the result for passed descriptor.
+     * @param sameName all the descriptors with the name of <code>fd</code>, in scan order
+     * @return the result, or <code>null</code> if <code>fd</code> is not in <code>sameName</code>
+     */
+    Result analyze(WideaFacetDescriptor fd, List<WideaFacetDescriptor> sameName) {
+        long modificationCount = hierarchy.getModificationCount();
+        NameAnalysis analysis;
+        synchronized (analyses) {
+            analysis = analyses.get(fd.getName());
+        }
+        if (analysis==null || !analysis.isValid(sameName, modificationCount, hierarchy)) {
+            analysis = analyze(sameName, modificationCount);
+            synchronized (analyses) {
+                analyses.put(fd.getName(), analysis);
+            }
+        }
+        return analysis.results.get(fd);
+    }
+
+    /**
+     * Forget the names that no longer have any facets.
+     */
+    void retainNames(Set<String> names) {
+        synchronized (analyses) {
+            analyses.keySet().retainAll(names);
+        }
+    }
+
+    private NameAnalysis analyze(List<WideaFacetDescriptor> sameName, long modificationCount) {
+        Map<String,List<String>> supertypeLists = new HashMap<String, List<String>>();
+        Map<String,Set<String>> supertypes = new HashMap<String, Set<String>>();
+        Map<String,Boolean> knownTypes = new HashMap<String, Boolean>();
+        for (WideaFacetDescriptor fd : sameName) {
+            String type = fd.getTargetObjectTypeName();
+            if (!supertypeLists.containsKey(type)) {
+                List<String> list = hierarchy.getSupertypes(type);
+                supertypeLists.put(type, list);
+                supertypes.put(type, new HashSet<String>(list));
+                knownTypes.put(type, hierarchy.isKnownType(type));
+            }
+        }
+        Map<WideaFacetDescriptor,Result> results = new IdentityHashMap<WideaFacetDescriptor, Result>();
+        Map<String,WideaFacetDescriptor> firstByKey = new HashMap<String, WideaFacetDescriptor>();
+        List<WideaFacetDescriptor> reachable = new ArrayList<WideaFacetDescriptor>();
+        for (WideaFacetDescriptor fd : sameName) {
+            Result r = new Result();
+            results.put(fd, r);
+            String key = fd.getProfileId() + '\0' + fd.getTargetObjectTypeName();
+            WideaFacetDescriptor first = firstByKey.get(key);
+            if (first!=null) {
+                r.shadowedBy = first;
+            } else {
+                firstByKey.put(key, fd);
+                r.unknownTargetType = !knownTypes.get(fd.getTargetObjectTypeName());
+            }
+            if (!r.isUnreachable()) {
+                reachable.add(fd);
+            }
+        }
+        for (WideaFacetDescriptor fd : reachable) {
+            for (WideaFacetDescriptor other : reachable) {
+                if (other!=fd && overrides(fd, other, supertypes)) {
+                    results.get(fd).overrides.add(other);
+                    results.get(other).overriddenBy.add(fd);
+                }
+            }
+        }
+        return new NameAnalysis(sameName, supertypeLists, knownTypes, results, modificationCount);
+    }
+
+    private static boolean overrides(WideaFacetDescriptor fd, WideaFacetDescriptor other, Map<String,Set<String>> supertypes) {
+        String type = fd.getTargetObjectTypeName();
+        String otherType = other.getTargetObjectTypeName();
+        if (fd.getProfileId().equals(other.getProfileId())) {
+            // same profile : the most specific type wins
+            return !type.equals(otherType) && supertypes.get(type).contains(otherType);
+        }
+        if (!other.getProfileId().equals(FacetResolver.ROOT_PROFILE)) {
+            // the other profiles can't be compared without the profile hierarchy
+            return false;
+        }
+        // profiles are tried before types : the more specific profile wins
+        // for all the types of the other facet's type hierarchy
+        return supertypes.get(type).contains(otherType) || supertypes.get(otherType).contains(type);
+    }
+
+}
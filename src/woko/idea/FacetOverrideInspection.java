@@ -0,0 +1,148 @@
+/*
+ * Copyright 2001-2012 Remi Vankeisbelck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package woko.idea;
+
+import com.intellij.codeInspection.InspectionManager;
+import com.intellij.codeInspection.LocalInspectionTool;
+import com.intellij.codeInspection.ProblemDescriptor;
+import com.intellij.codeInspection.ProblemHighlightType;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiClass;
+import com.intellij.psi.PsiClassOwner;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiFile;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+
+/**
+ * Reports the facets JFacets never uses (shadowed by a facet with the same key, or
+ * with an unknown target type), and the facets they override or are overridden by.
+ * The facets of the file are taken from the index, see {@link FacetOverrideAnalysis}.
+ * Only the root profile is compared with the other profiles : overrides between
+ * two other profiles are not reported.
+ */
+public class FacetOverrideInspection extends LocalInspectionTool {
+
+    private static final int MAX_LISTED = 3;
+    private static final String PROFILES_NOTE = " (only the " + FacetResolver.ROOT_PROFILE +
+            " profile is compared with the other profiles)";
+
+    @NotNull
+    @Override
+    public String getGroupDisplayName() {
+        return "Woko";
+    }
+
+    @NotNull
+    @Override
+    public String getDisplayName() {
+        return "Facet overrides and shadowed facets";
+    }
+
+    @NotNull
+    @Override
+    public String getShortName() {
+        return "WokoFacetOverride";
+    }
+
+    @Override
+    public boolean isEnabledByDefault() {
+        return true;
+    }
+
+    @Override
+    public ProblemDescriptor[] checkFile(@NotNull PsiFile file, @NotNull InspectionManager manager, boolean isOnTheFly) {
+        VirtualFile vf = file.getVirtualFile();
+        if (!(file instanceof PsiClassOwner) || vf==null) {
+            return null;
+        }
+        WokoProjectComponent wpc = file.getProject().getComponent(WokoProjectComponent.class);
+        Map<WideaFacetDescriptor,FacetOverrideAnalysis.Result> results = wpc.analyzeOverrides(vf.getPath());
+        if (results.isEmpty()) {
+            return null;
+        }
+        List<ProblemDescriptor> problems = new ArrayList<ProblemDescriptor>();
+        for (Map.Entry<WideaFacetDescriptor,FacetOverrideAnalysis.Result> e : results.entrySet()) {
+            WideaFacetDescriptor fd = e.getKey();
+            FacetOverrideAnalysis.Result r = e.getValue();
+            PsiElement anchor = getAnchor(fd, (PsiClassOwner)file);
+            if (anchor==null) {
+                continue;
+            }
+            if (r.getShadowedBy()!=null) {
+                problems.add(manager.createProblemDescriptor(anchor,
+                        "Facet " + toString(fd) + " is shadowed by " + r.getShadowedBy().getFacetClassName() +
+                        " : JFacets never uses it", null, ProblemHighlightType.LIKE_UNUSED_SYMBOL, isOnTheFly));
+            } else if (r.isUnknownTargetType()) {
+                problems.add(manager.createProblemDescriptor(anchor,
+                        "Target type " + fd.getTargetObjectTypeName() + " of facet " + toString(fd) +
+                        " can't be found : JFacets never uses it", null,
+                        ProblemHighlightType.GENERIC_ERROR_OR_WARNING, isOnTheFly));
+            }
+            if (!r.getOverrides().isEmpty()) {
+                problems.add(manager.createProblemDescriptor(anchor,
+                        "Facet " + toString(fd) + " overrides " + toString(r.getOverrides()) + PROFILES_NOTE, null,
+                        ProblemHighlightType.INFORMATION, isOnTheFly));
+            }
+            if (!r.getOverriddenBy().isEmpty()) {
+                problems.add(manager.createProblemDescriptor(anchor,
+                        "Facet " + toString(fd) + " is overridden by " + toString(r.getOverriddenBy()) +
+                        PROFILES_NOTE, null,
+                        ProblemHighlightType.INFORMATION, isOnTheFly));
+            }
+        }
+        return problems.toArray(new ProblemDescriptor[problems.size()]);
+    }
+
+    /**
+     * Return the <code>@FacetKey</code> annotation of the descriptor if it has been captured,
+     * the facet class otherwise (<code>null</code> if not found in the file).
+     */
+    private static PsiElement getAnchor(WideaFacetDescriptor fd, PsiClassOwner file) {
+        PsiElement annotation = fd.getFacetKeyAnnotation();
+        if (annotation!=null && file.equals(annotation.getContainingFile())) {
+            return annotation;
+        }
+        for (PsiClass psiClass : file.getClasses()) {
+            if (fd.getFacetClassName().equals(psiClass.getQualifiedName())) {
+                return psiClass;
+            }
+        }
+        return null;
+    }
+
+    private static String toString(WideaFacetDescriptor fd) {
+        return "(" + fd.getName() + ", " + fd.getProfileId() + ", " + fd.getTargetObjectTypeName() + ")";
+    }
+
+    private static String toString(List<WideaFacetDescriptor> descriptors) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < descriptors.size() && i < MAX_LISTED; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            WideaFacetDescriptor fd = descriptors.get(i);
+            sb.append(fd.getFacetClassName()).append(' ').append(toString(fd));
+        }
+        if (descriptors.size() > MAX_LISTED) {
+            sb.append(" and ").append(descriptors.size() - MAX_LISTED).append(" more");
+        }
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2001-2012 Remi Vankeisbelck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package woko.idea;
+
+import com.intellij.openapi.module.Module;
+import com.intellij.openapi.module.ModuleManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.CompilerModuleExtension;
+import com.intellij.openapi.roots.ProjectFileIndex;
+import com.intellij.openapi.roots.ProjectRootManager;
+import com.intellij.openapi.vfs.VfsUtil;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiManager;
+import com.intellij.psi.search.FilenameIndex;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.psi.xml.XmlDocument;
+import com.intellij.psi.xml.XmlFile;
+import com.intellij.psi.xml.XmlTag;
+
+import java.util.*;
+
+/**
+ * Finds the <code>Woko.Facet.Packages</code> declared in all the <code>web.xml</code>
+ * files of the project's modules, and in the <code>web-fragment.xml</code> files
+ * (including the ones in the dependencies), through the file name index.
+ * Test resources and the copies in the build directories (e.g. exploded wars
+ * under <code>target</code>) are ignored.
+ * The packages of each descriptor are cached by modification stamp, so
+ * that only the changed descriptors are parsed again. Must be used inside
+ * a read action.
+ */
+class FacetPackagesDiscovery {
+
+    static final String WEB_XML = "web.xml";
+    static final String WEB_FRAGMENT_XML = "web-fragment.xml";
+    static final String FACET_PACKAGES_PARAM = "Woko.Facet.Packages";
+
+    private static class Entry {
+
+        private final long stamp;
+        private final List<String> packages;
+
+        Entry(long stamp, List<String> packages) {
+            this.stamp = stamp;
+            this.packages = packages;
+        }
+    }
+
+    private final Project project;
+    private final Map<String,Entry> entries = new HashMap<String, Entry>();
+
+    FacetPackagesDiscovery(Project project) {
+        this.project = project;
+    }
+
+    static boolean isDescriptor(String fileName) {
+        return WEB_XML.equals(fileName) || WEB_FRAGMENT_XML.equals(fileName);
+    }
+
+    /**
+     * Return the packages declared in all the descriptors, without
+     * duplicates : the ones of the modules' <code>web.xml</code> first, then the
+     * ones of the fragments. Descriptors are ordered by module name, then by
+     * path (the fragments of the libraries last), and the first declaration
+     * of a package gives its rank.
+     */
+    synchronized List<String> getPackages() {
+        ProjectFileIndex fileIndex = ProjectRootManager.getInstance(project).getFileIndex();
+        List<VirtualFile> outputDirs = getOutputDirs(fileIndex);
+        List<VirtualFile> files = new ArrayList<VirtualFile>();
+        files.addAll(findFiles(WEB_XML, "WEB-INF", GlobalSearchScope.projectScope(project), fileIndex, outputDirs));
+        files.addAll(findFiles(WEB_FRAGMENT_XML, "META-INF", GlobalSearchScope.allScope(project), fileIndex, outputDirs));
+        Set<String> packages = new LinkedHashSet<String>();
+        Set<String> paths = new HashSet<String>();
+        PsiManager psiManager = PsiManager.getInstance(project);
+        for (VirtualFile vf : files) {
+            PsiFile psiFile = psiManager.findFile(vf);
+            if (psiFile instanceof XmlFile) {
+                String path = vf.getPath();
+                paths.add(path);
+                // the PSI stamp also changes with unsaved edits
+                long stamp = psiFile.getModificationStamp();
+                Entry entry = entries.get(path);
+                if (entry==null || entry.stamp!=stamp) {
+                    entry = new Entry(stamp, readPackages((XmlFile)psiFile));
+                    entries.put(path, entry);
+                }
+                packages.addAll(entry.packages);
+            }
+        }
+        // forget the descriptors that have been removed
+        entries.keySet().retainAll(paths);
+        return new ArrayList<String>(packages);
+    }
+
+    /**
+     * Return the build directories of the modules : the directory of the compiler
+     * output just under the content root (e.g. <code>target</code> for
+     * <code>target/classes</code>), or the output itself if it's in a web app.
+     */
+    private List<VirtualFile> getOutputDirs(ProjectFileIndex fileIndex) {
+        List<VirtualFile> res = new ArrayList<VirtualFile>();
+        for (Module module : ModuleManager.getInstance(project).getModules()) {
+            CompilerModuleExtension extension = CompilerModuleExtension.getInstance(module);
+            if (extension==null) {
+                continue;
+            }
+            for (VirtualFile output : Arrays.asList(extension.getCompilerOutputPath(), extension.getCompilerOutputPathForTests())) {
+                if (output==null) {
+                    continue;
+                }
+                VirtualFile contentRoot = fileIndex.getContentRootForFile(output);
+                VirtualFile dir = output;
+                while (contentRoot!=null && dir.getParent()!=null && !dir.getParent().equals(contentRoot)
+                        && !dir.getParent().getName().equals("WEB-INF")) {
+                    dir = dir.getParent();
+                }
+                if (dir.getParent()!=null && dir.getParent().getName().equals("WEB-INF")) {
+                    // e.g. WEB-INF/classes : the web.xml next to it is the real one
+                    dir = output;
+                }
+                res.add(dir);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Return the descriptors with passed name, in passed directory (<code>WEB-INF</code>
+     * or <code>META-INF</code>), that are neither test resources nor copies
+     * in the build directories, sorted by module name, then by path.
+     */
+    private List<VirtualFile> findFiles(
+            String name,
+            String dirName,
+            GlobalSearchScope scope,
+            final ProjectFileIndex fileIndex,
+            List<VirtualFile> outputDirs) {
+        List<VirtualFile> res = new ArrayList<VirtualFile>();
+        for (VirtualFile vf : FilenameIndex.getVirtualFilesByName(project, name, scope)) {
+            VirtualFile parent = vf.getParent();
+            if (parent==null || !parent.getName().equals(dirName) || fileIndex.isInTestSourceContent(vf)
+                    || isInAny(vf, outputDirs)) {
+                continue;
+            }
+            res.add(vf);
+        }
+        Collections.sort(res, new Comparator<VirtualFile>() {
+            @Override
+            public int compare(VirtualFile f1, VirtualFile f2) {
+                Module m1 = fileIndex.getModuleForFile(f1);
+                Module m2 = fileIndex.getModuleForFile(f2);
+                if (m1!=m2) {
+                    if (m1==null || m2==null) {
+                        // files of the modules first
+                        return m1==null ? 1 : -1;
+                    }
+                    int c = m1.getName().compareTo(m2.getName());
+                    if (c!=0) {
+                        return c;
+                    }
+                }
+                return f1.getPath().compareTo(f2.getPath());
+            }
+        });
+        return res;
+    }
+
+    private static boolean isInAny(VirtualFile vf, List<VirtualFile> dirs) {
+        for (VirtualFile dir : dirs) {
+            if (VfsUtil.isAncestor(dir, vf, true)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<String> readPackages(XmlFile xmlFile) {
+        List<String> packages = new ArrayList<String>();
+        XmlDocument doc = xmlFile.getDocument();
+        XmlTag rootTag = doc!=null ? doc.getRootTag() : null;
+        if (rootTag!=null) {
+            for (XmlTag tag : rootTag.findSubTags("context-param")) {
+                String pName = tag.getSubTagText("param-name");
+                if (pName!=null && pName.trim().equals(FACET_PACKAGES_PARAM)) {
+                    String packagesStr = tag.getSubTagText("param-value");
+                    if (packagesStr!=null) {
+                        packages.addAll(WokoProjectComponent.extractPackagesList(packagesStr));
+                    }
+                }
+            }
+        }
+        return Collections.unmodifiableList(packages);
+    }
+
+}
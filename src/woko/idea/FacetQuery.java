@@ -0,0 +1,506 @@
+/*
+ * Copyright 2001-2012 Remi Vankeisbelck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package woko.idea;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Filter query of the tool window, parsed once from the filter text. The query
+ * is a list of whitespace-separated terms, that must all match :
+ * <ul>
+ *     <li><code>name:</code>, <code>profile:</code>, <code>target:</code>, <code>class:</code> :
+ *     the field contains the value, or matches it if it has <code>*</code> wildcards
+ *     (e.g. <code>name:edit*</code>)</li>
+ *     <li><code>type:</code> : the type of the descriptor (groovy, java, compiled)</li>
+ *     <li>any other text is fuzzy matched against all the fields (see {@link FacetMatcher}),
+ *     and gives the score of the rows</li>
+ * </ul>
+ * A term prefixed with <code>-</code> excludes the rows it matches (free text is then
+ * matched as a substring). Matching is case-insensitive. E.g. :
+ * <code>profile:admin target:Book name:edit* -type:compiled</code>.
+ */
+class FacetQuery {
+
+    private static final String[] FIELD_PREFIXES = { "name:", "profile:", "target:", "class:" };
+    private static final String TYPE_PREFIX = "type:";
+
+    static final FacetQuery EMPTY = new FacetQuery(Collections.<Term>emptyList());
+
+    private final List<Term> terms;
+
+    private FacetQuery(List<Term> terms) {
+        this.terms = terms;
+    }
+
+    static FacetQuery parse(String text) {
+        if (text==null) {
+            return EMPTY;
+        }
+        List<Term> terms = new ArrayList<Term>();
+        for (String token : text.toLowerCase().trim().split("\\s+")) {
+            boolean negated = token.startsWith("-");
+            if (negated) {
+                token = token.substring(1);
+            }
+            Term term = parseTerm(token, negated);
+            if (term!=null) {
+                terms.add(term);
+            }
+        }
+        return terms.isEmpty() ? EMPTY : new FacetQuery(Collections.unmodifiableList(terms));
+    }
+
+    private static Term parseTerm(String token, boolean negated) {
+        for (int field = 0; field < FIELD_PREFIXES.length; field++) {
+            if (token.startsWith(FIELD_PREFIXES[field])) {
+                String value = token.substring(FIELD_PREFIXES[field].length());
+                // incomplete term (being typed) : ignored
+                return value.length()==0 ? null : new FieldTerm(negated, field, new ValuePattern(value));
+            }
+        }
+        if (token.startsWith(TYPE_PREFIX)) {
+            String value = token.substring(TYPE_PREFIX.length());
+            return value.length()==0 ? null : new TypeTerm(negated, new ValuePattern(value));
+        }
+        return token.length()==0 ? null : new TextTerm(negated, token);
+    }
+
+    boolean isEmpty() {
+        return terms.isEmpty();
+    }
+
+    /**
+     * Return <code>true</code> if the rows matching this query are a subset of
+     * the rows matching passed query (e.g. a term has been extended, or added).
+     */
+    boolean narrows(FacetQuery previous) {
+        if (previous.terms.size() > terms.size()) {
+            return false;
+        }
+        for (int i = 0; i < previous.terms.size(); i++) {
+            if (!terms.get(i).narrows(previous.terms.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Return the rows from passed (sorted) candidates that match the query,
+     * in model order, with their scores if the query has free text.
+     */
+    FacetFilterEngine.Result evaluate(FacetSearchIndex index, int[] candidates) {
+        int[] rows = candidates;
+        // indexed terms first, so that the fuzzy matching
+        // only checks the rows they have selected
+        for (Term term : terms) {
+            if (!term.negated && !(term instanceof TextTerm)) {
+                rows = term.select(index, rows);
+            }
+        }
+        for (Term term : terms) {
+            if (term.negated) {
+                rows = FacetSearchIndex.minus(rows, term.select(index, rows));
+            }
+        }
+        List<FacetMatcher> matchers = new ArrayList<FacetMatcher>();
+        for (Term term : terms) {
+            if (!term.negated && term instanceof TextTerm) {
+                FacetMatcher matcher = ((TextTerm)term).matcher;
+                rows = index.fuzzyCandidates(matcher, rows);
+                matchers.add(matcher);
+            }
+        }
+        int[] scores = null;
+        int[][] ranges = new int[rows.length][];
+        boolean hasRanges = false;
+        if (!matchers.isEmpty()) {
+            int[] matching = new int[rows.length];
+            scores = new int[rows.length];
+            int size = 0;
+            for (int row : rows) {
+                WideaFacetDescriptor fd = index.getDescriptors().get(row);
+                int total = 0;
+                int[] rowRanges = null;
+                for (FacetMatcher matcher : matchers) {
+                    int score = matcher.score(fd);
+                    if (score==FacetMatcher.NO_MATCH && fd.hasEmptyField()) {
+                        // descriptors with an empty field match any text, last
+                        score = 1;
+                    } else {
+                        // the matched chars are known while scoring
+                        rowRanges = concat(rowRanges, matcher.getMatchRanges());
+                    }
+                    if (score==FacetMatcher.NO_MATCH) {
+                        total = FacetMatcher.NO_MATCH;
+                        break;
+                    }
+                    total += score;
+                }
+                if (total!=FacetMatcher.NO_MATCH) {
+                    matching[size] = row;
+                    scores[size] = total;
+                    ranges[size] = rowRanges;
+                    hasRanges |= rowRanges!=null;
+                    size++;
+                }
+            }
+            rows = Arrays.copyOf(matching, size);
+            scores = Arrays.copyOf(scores, size);
+            ranges = Arrays.copyOf(ranges, size);
+        }
+        for (Term term : terms) {
+            if (!term.negated && term instanceof FieldTerm) {
+                for (int i = 0; i < rows.length; i++) {
+                    int[] termRanges = ((FieldTerm)term).getMatchRanges(index.getDescriptors().get(rows[i]));
+                    ranges[i] = concat(ranges[i], termRanges);
+                    hasRanges |= termRanges!=null;
+                }
+            }
+        }
+        return new FacetFilterEngine.Result(rows, scores, hasRanges ? ranges : null);
+    }
+
+    private static int[] concat(int[] a, int[] b) {
+        if (a==null) {
+            return b;
+        }
+        if (b==null) {
+            return a;
+        }
+        int[] res = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, res, a.length, b.length);
+        return res;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return this==o || (o instanceof FacetQuery && terms.equals(((FacetQuery)o).terms));
+    }
+
+    @Override
+    public int hashCode() {
+        return terms.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return terms.toString();
+    }
+
+    /**
+     * A predicate of the query.
+     */
+    abstract static class Term {
+
+        final boolean negated;
+        // normalized term, used for equality
+        private final String source;
+
+        Term(boolean negated, String source) {
+            this.negated = negated;
+            this.source = negated ? "-" + source : source;
+        }
+
+        /**
+         * Return the rows from passed (sorted) rows matching the term,
+         * ignoring negation.
+         */
+        abstract int[] select(FacetSearchIndex index, int[] rows);
+
+        /**
+         * Return <code>true</code> if this term matches a subset of the
+         * rows matched by passed term, once negation is applied.
+         */
+        boolean narrows(Term previous) {
+            if (equals(previous)) {
+                return true;
+            }
+            return !negated
+                    && !previous.negated
+                    && getClass()==previous.getClass()
+                    && narrowsSameKind(previous);
+        }
+
+        abstract boolean narrowsSameKind(Term previous);
+
+        @Override
+        public boolean equals(Object o) {
+            return this==o || (o instanceof Term && source.equals(((Term)o).source));
+        }
+
+        @Override
+        public int hashCode() {
+            return source.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return source;
+        }
+    }
+
+    static class FieldTerm extends Term {
+
+        private final int field;
+        private final ValuePattern pattern;
+
+        FieldTerm(boolean negated, int field, ValuePattern pattern) {
+            super(negated, FIELD_PREFIXES[field] + pattern);
+            this.field = field;
+            this.pattern = pattern;
+        }
+
+        @Override
+        int[] select(FacetSearchIndex index, int[] rows) {
+            FacetColumnIndex column = index.getColumnIndex(field);
+            if (rows.length <= column.getNbValues()) {
+                // fewer rows than values : check the rows
+                return verify(index, rows);
+            }
+            if (column.getNbValues() * 4 > index.size() && pattern.getLiteral()!=null) {
+                // values are mostly distinct (e.g. class names) : use the
+                // trigrams of the value if possible
+                int[] candidates = index.substringCandidates(pattern.getLiteral());
+                if (candidates!=null) {
+                    return verify(index, FacetSearchIndex.intersect(candidates, rows));
+                }
+            }
+            int[] selected = column.select(pattern);
+            return rows.length==index.size() ? selected : FacetSearchIndex.intersect(selected, rows);
+        }
+
+        private int[] verify(FacetSearchIndex index, int[] rows) {
+            int[] res = new int[rows.length];
+            int size = 0;
+            for (int row : rows) {
+                WideaFacetDescriptor fd = index.getDescriptors().get(row);
+                if (pattern.matches(fd.getSearchKey(), fd.getSearchKeyStart(field), fd.getSearchKeyEnd(field))) {
+                    res[size++] = row;
+                }
+            }
+            return size==res.length ? res : Arrays.copyOf(res, size);
+        }
+
+        /**
+         * Return the matched chars of the field of passed (matching)
+         * descriptor, or <code>null</code> if they can't be shown.
+         */
+        int[] getMatchRanges(WideaFacetDescriptor fd) {
+            int start = fd.getSearchKeyStart(field);
+            int end = fd.getSearchKeyEnd(field);
+            if (fd.getSearchField(field).length()!=end - start) {
+                return null;
+            }
+            return pattern.getMatchRanges(fd.getSearchKey(), start, end, field);
+        }
+
+        @Override
+        boolean narrowsSameKind(Term previous) {
+            FieldTerm p = (FieldTerm)previous;
+            return field==p.field && pattern.narrows(p.pattern);
+        }
+    }
+
+    static class TypeTerm extends Term {
+
+        private final ValuePattern pattern;
+
+        TypeTerm(boolean negated, ValuePattern pattern) {
+            super(negated, TYPE_PREFIX + pattern);
+            this.pattern = pattern;
+        }
+
+        @Override
+        int[] select(FacetSearchIndex index, int[] rows) {
+            int[] res = new int[0];
+            for (FdType type : FdType.values()) {
+                if (pattern.matches(type.name().toLowerCase())) {
+                    int[] ofType = FacetSearchIndex.intersect(index.getRowsOfType(type), rows);
+                    int[] union = Arrays.copyOf(res, res.length + ofType.length);
+                    System.arraycopy(ofType, 0, union, res.length, ofType.length);
+                    res = union;
+                }
+            }
+            Arrays.sort(res);
+            return res;
+        }
+
+        @Override
+        boolean narrowsSameKind(Term previous) {
+            return pattern.narrows(((TypeTerm)previous).pattern);
+        }
+    }
+
+    static class TextTerm extends Term {
+
+        private final String text;
+        private final FacetMatcher matcher;
+
+        TextTerm(boolean negated, String text) {
+            super(negated, text);
+            this.text = text;
+            this.matcher = new FacetMatcher(text);
+        }
+
+        /**
+         * Select the rows containing the text (only used
+         * for negated terms, others are fuzzy matched).
+         */
+        @Override
+        int[] select(FacetSearchIndex index, int[] rows) {
+            int[] candidates = index.substringCandidates(text);
+            if (candidates!=null) {
+                rows = FacetSearchIndex.intersect(candidates, rows);
+            }
+            int[] res = new int[rows.length];
+            int size = 0;
+            for (int row : rows) {
+                if (index.getDescriptors().get(row).getSearchKey().contains(text)) {
+                    res[size++] = row;
+                }
+            }
+            return Arrays.copyOf(res, size);
+        }
+
+        @Override
+        boolean narrowsSameKind(Term previous) {
+            // a fuzzy match of the text is also a match of any of its substrings
+            return text.contains(((TextTerm)previous).text);
+        }
+    }
+
+    /**
+     * Lower-cased value of a field term : matches the values that contain it,
+     * or, if it has <code>*</code> wildcards, the values that match it entirely.
+     */
+    static class ValuePattern {
+
+        private final String pattern;
+        private final String[] segments;
+
+        ValuePattern(String pattern) {
+            this.pattern = pattern;
+            this.segments = pattern.indexOf('*')==-1 ? null : pattern.split("\\*", -1);
+        }
+
+        /**
+         * @return the value to search, or <code>null</code> if the pattern has wildcards
+         */
+        String getLiteral() {
+            return segments==null ? pattern : null;
+        }
+
+        /**
+         * @return the prefix of all matching values, or <code>null</code> if they can
+         * have any prefix
+         */
+        String getPrefix() {
+            return segments==null || segments[0].length()==0 ? null : segments[0];
+        }
+
+        boolean matches(String s) {
+            return matches(s, 0, s.length());
+        }
+
+        /**
+         * Match the region of passed string.
+         */
+        boolean matches(String s, int from, int to) {
+            if (segments==null) {
+                int i = s.indexOf(pattern, from);
+                return i!=-1 && i + pattern.length() <= to;
+            }
+            String first = segments[0];
+            String last = segments[segments.length - 1];
+            if (to - from < first.length() + last.length()
+                    || !s.startsWith(first, from)
+                    || !s.startsWith(last, to - last.length())) {
+                return false;
+            }
+            int pos = from + first.length();
+            int end = to - last.length();
+            for (int i = 1; i < segments.length - 1; i++) {
+                String segment = segments[i];
+                if (segment.length() > 0) {
+                    int found = s.indexOf(segment, pos);
+                    if (found==-1 || found + segment.length() > end) {
+                        return false;
+                    }
+                    pos = found + segment.length();
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Return the matched chars of the region (that must match), as (field, start, end)
+         * triples, start and end being relative to the region.
+         */
+        int[] getMatchRanges(String s, int from, int to, int field) {
+            if (segments==null) {
+                int start = s.indexOf(pattern, from) - from;
+                return new int[] { field, start, start + pattern.length() };
+            }
+            int[] ranges = new int[segments.length * 3];
+            int size = 0;
+            int pos = from;
+            for (int i = 0; i < segments.length; i++) {
+                String segment = segments[i];
+                if (segment.length() > 0) {
+                    int found = i==0 ? from
+                            : i==segments.length - 1 ? to - segment.length()
+                            : s.indexOf(segment, pos);
+                    ranges[size++] = field;
+                    ranges[size++] = found - from;
+                    ranges[size++] = found - from + segment.length();
+                    pos = found + segment.length();
+                }
+            }
+            return size==ranges.length ? ranges : Arrays.copyOf(ranges, size);
+        }
+
+        /**
+         * Return <code>true</code> if this pattern matches a subset
+         * of the values matched by passed pattern.
+         */
+        boolean narrows(ValuePattern previous) {
+            if (pattern.equals(previous.pattern)) {
+                return true;
+            }
+            if (segments==null && previous.segments==null) {
+                return pattern.contains(previous.pattern);
+            }
+            // prefix patterns ("edit*")
+            return isPrefixPattern()
+                    && previous.isPrefixPattern()
+                    && pattern.startsWith(previous.getPrefix());
+        }
+
+        private boolean isPrefixPattern() {
+            return segments!=null && segments.length==2 && segments[1].length()==0;
+        }
+
+        @Override
+        public String toString() {
+            return pattern;
+        }
+    }
+
+}
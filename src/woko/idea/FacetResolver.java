@@ -0,0 +1,180 @@
+/*
+ * Copyright 2001-2012 Remi Vankeisbelck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package woko.idea;
+
+import java.util.*;
+
+/**
+ * Simulates the facet lookup of JFacets on the scanned descriptors : for each
+ * profile of the profile chain (the profile, then its parents), each type of
+ * the target type's hierarchy is tried in turn, and the first descriptor
+ * found is the one JFacets picks. Descriptors are looked up in a table built
+ * once for the descriptors, and resolutions are memoized until the type
+ * hierarchy changes, so that repeated queries are mere map lookups.
+ */
+class FacetResolver {
+
+    /**
+     * Profile all the Woko profiles inherit from.
+     */
+    static final String ROOT_PROFILE = "all";
+
+    /**
+     * Provides the super types of the target types.
+     */
+    interface TypeHierarchy {
+
+        /**
+         * Changes whenever the super types may have changed.
+         */
+        long getModificationCount();
+
+        /**
+         * Return passed type and its super types, in lookup order : the type,
+         * its superclasses, the interfaces, and <code>java.lang.Object</code> last.
+         */
+        List<String> getSupertypes(String typeName);
+
+        /**
+         * Return <code>false</code> if passed type can't be found.
+         */
+        boolean isKnownType(String typeName);
+    }
+
+    static class Resolution {
+
+        private final WideaFacetDescriptor descriptor;
+        private final String profileId;
+        private final String typeName;
+        private final int nbLookups;
+
+        Resolution(WideaFacetDescriptor descriptor, String profileId, String typeName, int nbLookups) {
+            this.descriptor = descriptor;
+            this.profileId = profileId;
+            this.typeName = typeName;
+            this.nbLookups = nbLookups;
+        }
+
+        /**
+         * The descriptor JFacets would pick, <code>null</code> if none matches.
+         */
+        WideaFacetDescriptor getDescriptor() {
+            return descriptor;
+        }
+
+        /**
+         * The profile of the chain the descriptor has been found for.
+         */
+        String getProfileId() {
+            return profileId;
+        }
+
+        /**
+         * The type of the hierarchy the descriptor has been found for.
+         */
+        String getTypeName() {
+            return typeName;
+        }
+
+        int getNbLookups() {
+            return nbLookups;
+        }
+    }
+
+    private final List<WideaFacetDescriptor> descriptors;
+    private final Map<String,WideaFacetDescriptor> table;
+    private final Map<String,Resolution> resolutions = new HashMap<String, Resolution>();
+    private long resolutionsModificationCount = -1;
+
+    FacetResolver(List<WideaFacetDescriptor> descriptors) {
+        this.descriptors = descriptors;
+        this.table = new HashMap<String, WideaFacetDescriptor>(descriptors.size() * 2);
+        for (WideaFacetDescriptor fd : descriptors) {
+            String key = key(fd.getName(), fd.getProfileId(), fd.getTargetObjectTypeName());
+            // descriptors are in scan order : the first one wins
+            if (!table.containsKey(key)) {
+                table.put(key, fd);
+            }
+        }
+    }
+
+    List<WideaFacetDescriptor> getDescriptors() {
+        return descriptors;
+    }
+
+    private static String key(String name, String profileId, String typeName) {
+        return name + '\0' + profileId + '\0' + typeName;
+    }
+
+    /**
+     * Return the profile chain for passed profiles : the root
+     * profile is added if the chain doesn't end with it.
+     */
+    static List<String> getProfileChain(List<String> profiles) {
+        List<String> chain = new ArrayList<String>(profiles);
+        if (chain.isEmpty() || !chain.get(chain.size() - 1).equals(ROOT_PROFILE)) {
+            chain.remove(ROOT_PROFILE);
+            chain.add(ROOT_PROFILE);
+        }
+        return chain;
+    }
+
+    /**
+     * Find the facet JFacets would pick for passed name, profile chain
+     * (most specific first) and target type.
+     */
+    Resolution resolve(String name, List<String> profileChain, String typeName, TypeHierarchy hierarchy) {
+        long modificationCount = hierarchy.getModificationCount();
+        StringBuilder sb = new StringBuilder(name).append('\0').append(typeName);
+        for (String profileId : profileChain) {
+            sb.append('\0').append(profileId);
+        }
+        String resolutionKey = sb.toString();
+        synchronized (resolutions) {
+            if (modificationCount!=resolutionsModificationCount) {
+                resolutions.clear();
+                resolutionsModificationCount = modificationCount;
+            }
+            Resolution res = resolutions.get(resolutionKey);
+            if (res!=null) {
+                return res;
+            }
+        }
+        Resolution res = doResolve(name, profileChain, hierarchy.getSupertypes(typeName));
+        synchronized (resolutions) {
+            if (modificationCount==resolutionsModificationCount) {
+                resolutions.put(resolutionKey, res);
+            }
+        }
+        return res;
+    }
+
+    private Resolution doResolve(String name, List<String> profileChain, List<String> types) {
+        int nbLookups = 0;
+        for (String profileId : profileChain) {
+            for (String type : types) {
+                nbLookups++;
+                WideaFacetDescriptor fd = table.get(key(name, profileId, type));
+                if (fd!=null) {
+                    return new Resolution(fd, profileId, type, nbLookups);
+                }
+            }
+        }
+        return new Resolution(null, null, null, nbLookups);
+    }
+
+}
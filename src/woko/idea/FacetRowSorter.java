@@ -0,0 +1,442 @@
+/*
+ * Copyright 2001-2012 Remi Vankeisbelck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package woko.idea;
+
+import javax.swing.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Row sorter for the facets table. Unlike <code>TableRowSorter</code>, it doesn't
+ * evaluate a filter for every model row : it's handed the (already computed)
+ * matching rows, and only sorts those. Changing the rows fires a single
+ * sorter event. When no column is sorted, rows having a score are shown
+ * best matches first.
+ * <p>
+ * Sorting uses the presorted columns of the model's snapshot (see
+ * {@link FacetSnapshot#getOrder(int)}) : values are only compared while
+ * the model is being changed.
+ */
+class FacetRowSorter extends RowSorter<FacetDescriptorTableModel> {
+
+    private static final int MAX_SORT_KEYS = 3;
+
+    private final FacetDescriptorTableModel model;
+    private List<SortKey> sortKeys = Collections.emptyList();
+    // matching model rows, or null if all rows are shown
+    private int[] rows = null;
+    // scores of the matching rows, or null
+    private int[] scores = null;
+    // matched chars of the matching rows, or null
+    private int[][] matchRanges = null;
+    private int[] viewToModel = new int[0];
+    // computed when needed
+    private int[] modelToView = null;
+
+    FacetRowSorter(FacetDescriptorTableModel model) {
+        this.model = model;
+        update();
+    }
+
+    /**
+     * Set the model rows to be shown.
+     * @param rows the model rows (sorted), or <code>null</code> to show all rows
+     */
+    void setRows(int[] rows) {
+        setRows(rows, null, null);
+    }
+
+    /**
+     * Set the model rows to be shown, their scores and their matched chars.
+     * @param rows the model rows (sorted), or <code>null</code> to show all rows
+     * @param scores the score of each row, or <code>null</code>
+     * @param matchRanges the matched chars of each row, or <code>null</code>
+     */
+    void setRows(int[] rows, int[] scores, int[][] matchRanges) {
+        if (rows!=this.rows || scores!=this.scores || matchRanges!=this.matchRanges) {
+            this.rows = rows;
+            this.scores = rows==null ? null : scores;
+            this.matchRanges = rows==null ? null : matchRanges;
+            update();
+        }
+    }
+
+    /**
+     * Return the chars matched by the filter in passed model row, as
+     * (field, start, end) triples, or <code>null</code>.
+     */
+    int[] getMatchRanges(int modelRow) {
+        if (matchRanges==null) {
+            return null;
+        }
+        int i = Arrays.binarySearch(rows, modelRow);
+        return i < 0 ? null : matchRanges[i];
+    }
+
+    private void update() {
+        int[] lastViewToModel = viewToModel;
+        FacetSnapshot snapshot = model.getStableSnapshot();
+        int[] v;
+        if (!sortKeys.isEmpty() && snapshot!=null) {
+            v = sortKeys.size()==1 ? sortByOrder(snapshot, sortKeys.get(0)) : sortByRanks(snapshot);
+        } else {
+            if (rows!=null) {
+                v = rows.clone();
+            } else {
+                v = new int[model.getRowCount()];
+                for (int i = 0; i < v.length; i++) {
+                    v[i] = i;
+                }
+            }
+            if (!sortKeys.isEmpty()) {
+                // model is being changed : compare the values
+                sort(v);
+            } else if (scores!=null) {
+                sortByScore(v, scores);
+            }
+        }
+        viewToModel = v;
+        modelToView = null;
+        fireRowSorterChanged(lastViewToModel);
+    }
+
+    /**
+     * Sort by one column : walk the presorted rows of the
+     * column, and keep the matching rows.
+     */
+    private int[] sortByOrder(FacetSnapshot snapshot, SortKey sortKey) {
+        int column = sortKey.getColumn();
+        int[] order = snapshot.getOrder(column);
+        boolean[] shown = null;
+        if (rows!=null) {
+            shown = new boolean[order.length];
+            for (int row : rows) {
+                shown[row] = true;
+            }
+        }
+        int[] v = new int[rows==null ? order.length : rows.length];
+        int size = 0;
+        if (sortKey.getSortOrder()!=SortOrder.DESCENDING) {
+            for (int row : order) {
+                if (shown==null || shown[row]) {
+                    v[size++] = row;
+                }
+            }
+        } else {
+            // walk the groups of equal values backwards,
+            // keeping model order inside each group
+            int[] ranks = snapshot.getValueRanks(column);
+            for (int end = order.length; end > 0; ) {
+                int start = end - 1;
+                while (start > 0 && ranks[order[start - 1]]==ranks[order[end - 1]]) {
+                    start--;
+                }
+                for (int i = start; i < end; i++) {
+                    int row = order[i];
+                    if (shown==null || shown[row]) {
+                        v[size++] = row;
+                    }
+                }
+                end = start;
+            }
+        }
+        return v;
+    }
+
+    /**
+     * Sort by several columns : stable sorts of the rows by the value
+     * ranks of each column, least significant column first.
+     */
+    private int[] sortByRanks(FacetSnapshot snapshot) {
+        int[] v = rows;
+        if (v==null) {
+            v = new int[snapshot.size()];
+            for (int i = 0; i < v.length; i++) {
+                v[i] = i;
+            }
+        }
+        for (int i = sortKeys.size() - 1; i >= 0; i--) {
+            SortKey sortKey = sortKeys.get(i);
+            int column = sortKey.getColumn();
+            v = FacetSnapshot.countingSort(
+                    v,
+                    snapshot.getValueRanks(column),
+                    snapshot.getNbValues(column),
+                    sortKey.getSortOrder()==SortOrder.DESCENDING);
+        }
+        return v;
+    }
+
+    private int compareRows(int row1, int row2) {
+        for (SortKey sortKey : sortKeys) {
+            int column = sortKey.getColumn();
+            int res = FacetSnapshot.compareValues(model.getValueAt(row1, column), model.getValueAt(row2, column));
+            if (res!=0) {
+                return sortKey.getSortOrder()==SortOrder.DESCENDING ? -res : res;
+            }
+        }
+        // keep model order for equal rows
+        return row1 - row2;
+    }
+
+    /**
+     * Sort passed rows by decreasing score, and model order for equal scores.
+     * Scores and rows are packed in longs, so that a primitive sort is used.
+     */
+    private static void sortByScore(int[] rows, int[] scores) {
+        long[] packed = new long[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+            packed[i] = ((long)(Integer.MAX_VALUE - scores[i]) << 32) | rows[i];
+        }
+        Arrays.sort(packed);
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = (int)packed[i];
+        }
+    }
+
+    // merge sort, so that we don't box the rows
+    private void sort(int[] a) {
+        int[] tmp = new int[a.length];
+        mergeSort(a, tmp, 0, a.length);
+    }
+
+    private void mergeSort(int[] a, int[] tmp, int from, int to) {
+        if (to - from < 2) {
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        mergeSort(a, tmp, from, mid);
+        mergeSort(a, tmp, mid, to);
+        if (compareRows(a[mid - 1], a[mid]) <= 0) {
+            return;
+        }
+        System.arraycopy(a, from, tmp, from, to - from);
+        int i = from, j = mid, k = from;
+        while (i < mid && j < to) {
+            a[k++] = compareRows(tmp[i], tmp[j]) <= 0 ? tmp[i++] : tmp[j++];
+        }
+        while (i < mid) {
+            a[k++] = tmp[i++];
+        }
+        while (j < to) {
+            a[k++] = tmp[j++];
+        }
+    }
+
+    @Override
+    public FacetDescriptorTableModel getModel() {
+        return model;
+    }
+
+    @Override
+    public void toggleSortOrder(int column) {
+        List<SortKey> keys = new ArrayList<SortKey>(sortKeys);
+        if (!keys.isEmpty() && keys.get(0).getColumn()==column) {
+            SortKey primary = keys.get(0);
+            keys.set(0, new SortKey(column, primary.getSortOrder()==SortOrder.ASCENDING ?
+                    SortOrder.DESCENDING :
+                    SortOrder.ASCENDING));
+        } else {
+            for (int i = 0; i < keys.size(); i++) {
+                if (keys.get(i).getColumn()==column) {
+                    keys.remove(i);
+                    break;
+                }
+            }
+            keys.add(0, new SortKey(column, SortOrder.ASCENDING));
+            if (keys.size() > MAX_SORT_KEYS) {
+                keys = keys.subList(0, MAX_SORT_KEYS);
+            }
+        }
+        setSortKeys(keys);
+    }
+
+    @Override
+    public int convertRowIndexToModel(int index) {
+        if (index < 0 || index >= viewToModel.length) {
+            throw new IndexOutOfBoundsException("Invalid index : " + index);
+        }
+        return viewToModel[index];
+    }
+
+    @Override
+    public int convertRowIndexToView(int index) {
+        if (index < 0 || index >= model.getRowCount()) {
+            throw new IndexOutOfBoundsException("Invalid index : " + index);
+        }
+        if (modelToView==null) {
+            int[] m2v = new int[model.getRowCount()];
+            Arrays.fill(m2v, -1);
+            for (int i = 0; i < viewToModel.length; i++) {
+                if (viewToModel[i] < m2v.length) {
+                    m2v[viewToModel[i]] = i;
+                }
+            }
+            modelToView = m2v;
+        }
+        return modelToView[index];
+    }
+
+    @Override
+    public void setSortKeys(List<? extends SortKey> keys) {
+        List<SortKey> newKeys = keys==null ?
+                Collections.<SortKey>emptyList() :
+                Collections.unmodifiableList(new ArrayList<SortKey>(keys));
+        if (!newKeys.equals(sortKeys)) {
+            sortKeys = newKeys;
+            fireSortOrderChanged();
+            update();
+        }
+    }
+
+    @Override
+    public List<? extends SortKey> getSortKeys() {
+        return sortKeys;
+    }
+
+    @Override
+    public int getViewRowCount() {
+        return viewToModel.length;
+    }
+
+    @Override
+    public int getModelRowCount() {
+        return model.getRowCount();
+    }
+
+    @Override
+    public void modelStructureChanged() {
+        allRowsChanged();
+    }
+
+    @Override
+    public void allRowsChanged() {
+        // matching rows refer to the previous model contents, show
+        // everything until the filter is applied again
+        rows = null;
+        scores = null;
+        matchRanges = null;
+        update();
+    }
+
+    /**
+     * Shift the rows below the inserted ones. When all rows are shown, the inserted
+     * rows are merged into the view, otherwise they're hidden until the filter is
+     * applied again.
+     */
+    @Override
+    public void rowsInserted(int firstRow, int endRow) {
+        int count = endRow - firstRow + 1;
+        if (rows!=null) {
+            // the rows may be shared with the filter engine : copy
+            int[] shifted = new int[rows.length];
+            for (int i = 0; i < rows.length; i++) {
+                shifted[i] = rows[i] < firstRow ? rows[i] : rows[i] + count;
+            }
+            rows = shifted;
+        }
+        int[] lastViewToModel = viewToModel;
+        int[] v = new int[viewToModel.length];
+        for (int i = 0; i < v.length; i++) {
+            v[i] = viewToModel[i] < firstRow ? viewToModel[i] : viewToModel[i] + count;
+        }
+        if (rows==null) {
+            int[] inserted = new int[count];
+            for (int i = 0; i < count; i++) {
+                inserted[i] = firstRow + i;
+            }
+            sort(inserted);
+            v = merge(v, inserted);
+        }
+        viewToModel = v;
+        modelToView = null;
+        fireRowSorterChanged(lastViewToModel);
+    }
+
+    /**
+     * Remove the deleted rows, and shift the rows below them.
+     */
+    @Override
+    public void rowsDeleted(int firstRow, int endRow) {
+        int count = endRow - firstRow + 1;
+        if (rows!=null) {
+            int[] remaining = new int[rows.length];
+            int[] remainingScores = scores==null ? null : new int[rows.length];
+            int[][] remainingRanges = matchRanges==null ? null : new int[rows.length][];
+            int size = 0;
+            for (int i = 0; i < rows.length; i++) {
+                int row = rows[i];
+                if (row < firstRow || row > endRow) {
+                    remaining[size] = row < firstRow ? row : row - count;
+                    if (scores!=null) {
+                        remainingScores[size] = scores[i];
+                    }
+                    if (matchRanges!=null) {
+                        remainingRanges[size] = matchRanges[i];
+                    }
+                    size++;
+                }
+            }
+            rows = Arrays.copyOf(remaining, size);
+            scores = scores==null ? null : Arrays.copyOf(remainingScores, size);
+            matchRanges = matchRanges==null ? null : Arrays.copyOf(remainingRanges, size);
+        }
+        int[] lastViewToModel = viewToModel;
+        int[] v = new int[viewToModel.length];
+        int size = 0;
+        for (int row : viewToModel) {
+            if (row < firstRow) {
+                v[size++] = row;
+            } else if (row > endRow) {
+                v[size++] = row - count;
+            }
+        }
+        viewToModel = Arrays.copyOf(v, size);
+        modelToView = null;
+        fireRowSorterChanged(lastViewToModel);
+    }
+
+    /**
+     * Merge passed view rows, both sorted in view order.
+     */
+    private int[] merge(int[] a, int[] b) {
+        int[] res = new int[a.length + b.length];
+        int i = 0, j = 0, k = 0;
+        while (i < a.length && j < b.length) {
+            res[k++] = compareRows(a[i], b[j]) <= 0 ? a[i++] : b[j++];
+        }
+        while (i < a.length) {
+            res[k++] = a[i++];
+        }
+        while (j < b.length) {
+            res[k++] = b[j++];
+        }
+        return res;
+    }
+
+    @Override
+    public void rowsUpdated(int firstRow, int endRow) {
+        update();
+    }
+
+    @Override
+    public void rowsUpdated(int firstRow, int endRow, int column) {
+        update();
+    }
+
+}
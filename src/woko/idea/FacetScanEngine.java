@@ -0,0 +1,94 @@
+/*
+ * Copyright 2001-2012 Remi Vankeisbelck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package woko.idea;
+
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiFile;
+
+import java.util.List;
+
+/**
+ * Finds the files that may contain facets in the configured packages.
+ */
+interface FacetScanEngine {
+
+    /**
+     * Max number of files parsed in a read action.
+     */
+    int BATCH_SIZE = 50;
+
+    /**
+     * Receives the files found by the engine. Called inside a read action.
+     */
+    interface FileSink {
+
+        /**
+         * @param psiFile the file
+         * @param vf the file's virtual file
+         * @param packageRank the rank (in the configured packages list) of the package
+         *                    the file has been found in
+         */
+        void fileFound(PsiFile psiFile, VirtualFile vf, int packageRank);
+
+    }
+
+    /**
+     * A part of a configured package that can be scanned independently
+     * of the others.
+     */
+    class ScanUnit {
+
+        private final int packageRank;
+        private final String packageName;
+        private final boolean recursive;
+
+        ScanUnit(int packageRank, String packageName, boolean recursive) {
+            this.packageRank = packageRank;
+            this.packageName = packageName;
+            this.recursive = recursive;
+        }
+
+        int getPackageRank() {
+            return packageRank;
+        }
+
+        String getPackageName() {
+            return packageName;
+        }
+
+        boolean isRecursive() {
+            return recursive;
+        }
+    }
+
+    String getName();
+
+    /**
+     * Split the passed configured package into units that can be scanned
+     * concurrently. Called inside a read action.
+     */
+    List<ScanUnit> split(String packageName, int packageRank);
+
+    /**
+     * Scan the passed unit. Runs on a pooled thread that doesn't hold the
+     * read lock : implementations must acquire short read actions as they go,
+     * never one for the whole unit, so that write actions don't wait for the
+     * scan. May be called concurrently for different units.
+     */
+    void scan(ScanUnit unit, ProgressIndicator indicator, FileSink sink);
+
+}
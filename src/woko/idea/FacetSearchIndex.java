@@ -0,0 +1,312 @@
+/*
+ * Copyright 2001-2012 Remi Vankeisbelck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package woko.idea;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Indexes of a list of descriptors, used to evaluate the filter queries (see
+ * {@link FacetQuery}) :
+ * <ul>
+ *     <li>a trigram index over the search keys (see {@link WideaFacetDescriptor#getSearchKey()}) :
+ *     the rows containing a substring are found by intersecting the posting lists of its
+ *     trigrams, and only those have to be checked</li>
+ *     <li>an index of the distinct values of each field (see {@link FacetColumnIndex})</li>
+ *     <li>the rows of each descriptor type</li>
+ *     <li>the chars of each search key, to discard fuzzy candidates</li>
+ * </ul>
+ * Built once for a list of descriptors, and never modified afterwards.
+ */
+class FacetSearchIndex {
+
+    private static final int[] NO_ROWS = new int[0];
+
+    private final List<WideaFacetDescriptor> descriptors;
+    private final String[] keys;
+    private final int[] allRows;
+    // chars present in each key, to quickly discard fuzzy candidates
+    private final long[] charMasks;
+    private final FacetColumnIndex[] columns;
+    // rows by type ordinal
+    private final int[][] typeRows;
+
+    // open addressing table : trigram -> sorted rows containing it
+    private long[] trigrams;
+    private int[][] postings;
+    private int[] counts;
+    private int[] lastRows;
+    private int nbTrigrams = 0;
+
+    FacetSearchIndex(List<WideaFacetDescriptor> descriptors) {
+        this.descriptors = descriptors;
+        int n = descriptors.size();
+        keys = new String[n];
+        allRows = new int[n];
+        charMasks = new long[n];
+        FdType[] types = FdType.values();
+        int[] nbOfType = new int[types.length];
+        for (int row = 0; row < n; row++) {
+            WideaFacetDescriptor fd = descriptors.get(row);
+            keys[row] = fd.getSearchKey();
+            allRows[row] = row;
+            charMasks[row] = FacetMatcher.charMask(keys[row], 0, keys[row].length());
+            nbOfType[fd.getType().ordinal()]++;
+        }
+        typeRows = new int[types.length][];
+        for (int t = 0; t < types.length; t++) {
+            typeRows[t] = new int[nbOfType[t]];
+            nbOfType[t] = 0;
+        }
+        for (int row = 0; row < n; row++) {
+            int t = descriptors.get(row).getType().ordinal();
+            typeRows[t][nbOfType[t]++] = row;
+        }
+        columns = new FacetColumnIndex[WideaFacetDescriptor.NB_SEARCH_FIELDS];
+        for (int field = 0; field < columns.length; field++) {
+            columns[field] = new FacetColumnIndex(descriptors, field);
+        }
+
+        // first pass : count the rows for each trigram
+        allocate(1024);
+        for (int row = 0; row < n; row++) {
+            String key = keys[row];
+            for (int i = 0; i + 3 <= key.length(); i++) {
+                long trigram = trigramAt(key, i);
+                if (trigram!=-1) {
+                    int slot = slot(trigram, true);
+                    if (lastRows[slot]!=row) {
+                        lastRows[slot] = row;
+                        counts[slot]++;
+                    }
+                }
+            }
+        }
+        // second pass : fill the posting lists
+        for (int slot = 0; slot < trigrams.length; slot++) {
+            if (trigrams[slot]!=0) {
+                postings[slot] = new int[counts[slot]];
+                counts[slot] = 0;
+                lastRows[slot] = -1;
+            }
+        }
+        for (int row = 0; row < n; row++) {
+            String key = keys[row];
+            for (int i = 0; i + 3 <= key.length(); i++) {
+                long trigram = trigramAt(key, i);
+                if (trigram!=-1) {
+                    int slot = slot(trigram, false);
+                    if (lastRows[slot]!=row) {
+                        lastRows[slot] = row;
+                        postings[slot][counts[slot]++] = row;
+                    }
+                }
+            }
+        }
+        // only needed while building
+        counts = null;
+        lastRows = null;
+    }
+
+    List<WideaFacetDescriptor> getDescriptors() {
+        return descriptors;
+    }
+
+    int[] getAllRows() {
+        return allRows;
+    }
+
+    /**
+     * Return the rows from passed (sorted) candidates that may be fuzzy
+     * matched by passed matcher : the rows whose key contains all the chars
+     * of the pattern, and the rows with an empty field.
+     */
+    int[] fuzzyCandidates(FacetMatcher matcher, int[] candidates) {
+        long mask = matcher.getCharMask();
+        int[] res = new int[candidates.length];
+        int size = 0;
+        for (int row : candidates) {
+            if ((charMasks[row] & mask)==mask || descriptors.get(row).hasEmptyField()) {
+                res[size++] = row;
+            }
+        }
+        return size==res.length ? res : Arrays.copyOf(res, size);
+    }
+
+    int size() {
+        return keys.length;
+    }
+
+    FacetColumnIndex getColumnIndex(int field) {
+        return columns[field];
+    }
+
+    /**
+     * Return the (sorted) rows of the descriptors of passed type.
+     */
+    int[] getRowsOfType(FdType type) {
+        return typeRows[type.ordinal()];
+    }
+
+    /**
+     * Return the (sorted) rows whose search key may contain passed lower-cased text,
+     * using the trigram index. The candidates still have to be checked.
+     * @return the candidates, or <code>null</code> if the text is too short to use
+     * the index
+     */
+    int[] substringCandidates(String lowerCaseText) {
+        return lowerCaseText.length() < 3 ? null : trigramCandidates(lowerCaseText);
+    }
+
+    private int[] trigramCandidates(String text) {
+        int nb = text.length() - 2;
+        int[][] lists = new int[nb][];
+        for (int i = 0; i < nb; i++) {
+            long trigram = trigramAt(text, i);
+            int slot = trigram==-1 ? -1 : slot(trigram, false);
+            if (slot==-1) {
+                // unknown trigram : no row can match
+                return NO_ROWS;
+            }
+            lists[i] = postings[slot];
+        }
+        // intersect, smallest lists first
+        Arrays.sort(lists, new Comparator<int[]>() {
+            @Override
+            public int compare(int[] l1, int[] l2) {
+                return l1.length - l2.length;
+            }
+        });
+        int[] res = lists[0];
+        for (int i = 1; i < lists.length && res.length > 0; i++) {
+            if (lists[i]!=lists[i-1]) {
+                res = intersect(res, lists[i]);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Return the intersection of passed sorted rows.
+     */
+    static int[] intersect(int[] a, int[] b) {
+        int[] res = new int[Math.min(a.length, b.length)];
+        int i = 0, j = 0, size = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                res[size++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(res, size);
+    }
+
+    /**
+     * Return the rows of <code>a</code> that are not in <code>b</code> (both sorted).
+     */
+    static int[] minus(int[] a, int[] b) {
+        if (b.length==0) {
+            return a;
+        }
+        int[] res = new int[a.length];
+        int i = 0, j = 0, size = 0;
+        while (i < a.length) {
+            if (j==b.length || a[i] < b[j]) {
+                res[size++] = a[i++];
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                i++;
+                j++;
+            }
+        }
+        return size==res.length ? res : Arrays.copyOf(res, size);
+    }
+
+    /**
+     * Pack the 3 chars at passed index in a long, or return -1 if the
+     * trigram spans several fields.
+     */
+    private static long trigramAt(String s, int i) {
+        char c0 = s.charAt(i), c1 = s.charAt(i + 1), c2 = s.charAt(i + 2);
+        if (c0==WideaFacetDescriptor.SEARCH_KEY_SEPARATOR
+                || c1==WideaFacetDescriptor.SEARCH_KEY_SEPARATOR
+                || c2==WideaFacetDescriptor.SEARCH_KEY_SEPARATOR) {
+            return -1;
+        }
+        return ((long)c0 << 32) | ((long)c1 << 16) | c2;
+    }
+
+    private void allocate(int capacity) {
+        trigrams = new long[capacity];
+        postings = new int[capacity][];
+        counts = new int[capacity];
+        lastRows = new int[capacity];
+        Arrays.fill(lastRows, -1);
+    }
+
+    /**
+     * Return the slot of passed trigram, creating it if asked to.
+     * @return the slot, or -1 if not found and not created
+     */
+    private int slot(long trigram, boolean create) {
+        int mask = trigrams.length - 1;
+        int slot = hash(trigram) & mask;
+        while (trigrams[slot]!=0) {
+            if (trigrams[slot]==trigram) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (!create) {
+            return -1;
+        }
+        if ((nbTrigrams + 1) * 2 > trigrams.length) {
+            grow();
+            return slot(trigram, true);
+        }
+        trigrams[slot] = trigram;
+        nbTrigrams++;
+        return slot;
+    }
+
+    private void grow() {
+        long[] oldTrigrams = trigrams;
+        int[] oldCounts = counts;
+        int[] oldLastRows = lastRows;
+        allocate(oldTrigrams.length * 2);
+        nbTrigrams = 0;
+        for (int i = 0; i < oldTrigrams.length; i++) {
+            if (oldTrigrams[i]!=0) {
+                int slot = slot(oldTrigrams[i], true);
+                counts[slot] = oldCounts[i];
+                lastRows[slot] = oldLastRows[i];
+            }
+        }
+    }
+
+    private static int hash(long trigram) {
+        long h = trigram * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32));
+    }
+
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2001-2012 Remi Vankeisbelck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package woko.idea;
+
+import java.util.*;
+
+/**
+ * Immutable snapshot of the facet descriptors shown in the table, with one
+ * array per column, so that the table reads its cells without going through
+ * the project component, and always sees a consistent list.
+ * <p>
+ * Each column is also presorted when the snapshot is built : the rank of the
+ * value of each row among the distinct values of the column, and the rows in
+ * column order. Sorting the table then doesn't compare any value.
+ */
+class FacetSnapshot {
+
+    static final int NB_COLUMNS = 5;
+
+    private static final Comparator<Object> VALUE_ORDER = new Comparator<Object>() {
+        @Override
+        public int compare(Object v1, Object v2) {
+            return compareValues(v1, v2);
+        }
+    };
+
+    static final FacetSnapshot EMPTY = new FacetSnapshot(Collections.<WideaFacetDescriptor>emptyList());
+
+    private final List<WideaFacetDescriptor> descriptors;
+    private final WideaFacetDescriptor[] rows;
+    private final FdType[] types;
+    private final String[] names;
+    private final String[] profileIds;
+    private final String[] targetObjectTypeNames;
+    private final String[] facetClassNames;
+    // row of each descriptor, to restore the selection
+    private final Map<WideaFacetDescriptor,Integer> rowsByDescriptor;
+
+    // per column : rank of each row's value (equal values have the same rank)
+    private final int[][] valueRanks;
+    // per column : number of distinct values
+    private final int[] nbValues;
+    // per column : rows sorted by value, then by row
+    private final int[][] orders;
+
+    FacetSnapshot(List<WideaFacetDescriptor> descriptors) {
+        this.descriptors = descriptors;
+        int n = descriptors.size();
+        rows = descriptors.toArray(new WideaFacetDescriptor[n]);
+        types = new FdType[n];
+        names = new String[n];
+        profileIds = new String[n];
+        targetObjectTypeNames = new String[n];
+        facetClassNames = new String[n];
+        rowsByDescriptor = new HashMap<WideaFacetDescriptor, Integer>(n * 2);
+        for (int row = 0; row < n; row++) {
+            WideaFacetDescriptor fd = rows[row];
+            types[row] = fd.getType();
+            names[row] = fd.getName();
+            profileIds[row] = fd.getProfileId();
+            targetObjectTypeNames[row] = fd.getTargetObjectTypeName();
+            facetClassNames[row] = fd.getFacetClassName();
+            if (!rowsByDescriptor.containsKey(fd)) {
+                rowsByDescriptor.put(fd, row);
+            }
+        }
+        valueRanks = new int[NB_COLUMNS][];
+        nbValues = new int[NB_COLUMNS];
+        orders = new int[NB_COLUMNS][];
+        for (int col = 0; col < NB_COLUMNS; col++) {
+            presort(col);
+        }
+    }
+
+    private void presort(int col) {
+        int n = rows.length;
+        // rank the distinct values only
+        Map<Object,Integer> distinct = new HashMap<Object, Integer>();
+        for (int row = 0; row < n; row++) {
+            Object value = getValueAt(row, col);
+            if (!distinct.containsKey(value)) {
+                distinct.put(value, distinct.size());
+            }
+        }
+        Object[] values = distinct.keySet().toArray();
+        Arrays.sort(values, VALUE_ORDER);
+        int rank = -1;
+        for (int i = 0; i < values.length; i++) {
+            if (i==0 || compareValues(values[i - 1], values[i])!=0) {
+                rank++;
+            }
+            distinct.put(values[i], rank);
+        }
+        int[] ranks = new int[n];
+        for (int row = 0; row < n; row++) {
+            ranks[row] = distinct.get(getValueAt(row, col));
+        }
+        valueRanks[col] = ranks;
+        nbValues[col] = rank + 1;
+        orders[col] = countingSort(allRows(n), ranks, rank + 1, false);
+    }
+
+    /**
+     * Compare column values, ignoring case for strings.
+     */
+    @SuppressWarnings("unchecked")
+    static int compareValues(Object v1, Object v2) {
+        if (v1==null) {
+            return v2==null ? 0 : -1;
+        }
+        if (v2==null) {
+            return 1;
+        }
+        if (v1 instanceof String) {
+            return ((String)v1).compareToIgnoreCase((String)v2);
+        }
+        return ((Comparable<Object>)v1).compareTo(v2);
+    }
+
+    private static int[] allRows(int n) {
+        int[] res = new int[n];
+        for (int row = 0; row < n; row++) {
+            res[row] = row;
+        }
+        return res;
+    }
+
+    /**
+     * Stable sort of passed rows by rank.
+     */
+    static int[] countingSort(int[] rows, int[] ranks, int nbRanks, boolean descending) {
+        int[] starts = new int[nbRanks + 1];
+        for (int row : rows) {
+            int rank = descending ? nbRanks - 1 - ranks[row] : ranks[row];
+            starts[rank + 1]++;
+        }
+        for (int i = 0; i < nbRanks; i++) {
+            starts[i + 1] += starts[i];
+        }
+        int[] res = new int[rows.length];
+        for (int row : rows) {
+            int rank = descending ? nbRanks - 1 - ranks[row] : ranks[row];
+            res[starts[rank]++] = row;
+        }
+        return res;
+    }
+
+    /**
+     * Return the rank of each row's value in passed column : rows
+     * with equal values (ignoring case) have the same rank.
+     */
+    int[] getValueRanks(int col) {
+        return valueRanks[col];
+    }
+
+    int getNbValues(int col) {
+        return nbValues[col];
+    }
+
+    /**
+     * Return all the rows sorted by passed column (ascending), equal
+     * values in row order.
+     */
+    int[] getOrder(int col) {
+        return orders[col];
+    }
+
+    /**
+     * Return the descriptors list the snapshot has been created from.
+     */
+    List<WideaFacetDescriptor> getDescriptors() {
+        return descriptors;
+    }
+
+    int size() {
+        return rows.length;
+    }
+
+    WideaFacetDescriptor getDescriptor(int row) {
+        return rows[row];
+    }
+
+    /**
+     * Return the row of passed descriptor, or -1 if not found.
+     */
+    int indexOf(WideaFacetDescriptor fd) {
+        Integer row = rowsByDescriptor.get(fd);
+        return row==null ? -1 : row;
+    }
+
+    FdType getType(int row) {
+        return types[row];
+    }
+
+    Object getValueAt(int row, int col) {
+        switch (col) {
+            case 0 : return types[row];
+            case 1 : return names[row];
+            case 2 : return profileIds[row];
+            case 3 : return targetObjectTypeNames[row];
+            case 4 : return facetClassNames[row];
+            default: throw new ArrayIndexOutOfBoundsException("col is out of bounds : " + col);
+        }
+    }
+
+}
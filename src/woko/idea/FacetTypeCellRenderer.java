@@ -37,17 +37,15 @@ public class FacetTypeCellRenderer extends FacetCellRenderer {
 
     @Override
     protected void setDisplayValue(JTable table, Object value, boolean selected, boolean hasFocus, int row, int column) {
-        setValue(null);
+        // icon only : text and icon are reset for each cell
         FdType type = (FdType)value;
         if (type!=null) {
             switch(type) {
                 case Compiled   : setIcon(ICON_COMPILED); break;
                 case Groovy     : setIcon(ICON_GROOVY); break;
                 case Java       : setIcon(ICON_JAVA); break;
-                default         : setIcon(null); break;
+                default         : break;
             }
-        } else {
-            setIcon(null);
         }
     }
 }
@@ -0,0 +1,357 @@
+/*
+ * Copyright 2001-2012 Remi Vankeisbelck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package woko.idea;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.components.ApplicationComponent;
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Application-wide cache of the compiled facets found in library jars, keyed by
+ * the hash of the jar contents, so that a jar used by several projects (e.g. the
+ * Woko builtin facets) is scanned only once. The cache is saved in the IDE's
+ * system directory, and its least recently used jars are evicted when the number
+ * of jars plus the number of facet classes exceeds {@link #MAX_WEIGHT}.
+ */
+public class LibraryFacetCache implements ApplicationComponent {
+
+    private static final Logger LOG = Logger.getInstance("#woko.idea.LibraryFacetCache");
+
+    private static final int MAGIC = 0x574F4B4C; // "WOKL"
+    private static final int VERSION = 1;
+
+    private static final ThreadLocal<byte[]> HASH_BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[64 * 1024];
+        }
+    };
+
+    // max number of jars + facet classes kept
+    static final int MAX_WEIGHT = 20000;
+
+    /**
+     * The facet classes found in a jar, and the packages that have
+     * been scanned to find them. Immutable : scanning more packages
+     * creates a new instance.
+     */
+    static class JarFacets {
+
+        static final JarFacets EMPTY = new JarFacets(
+                Collections.<String>emptySet(),
+                Collections.<String,List<WideaFacetDescriptor>>emptyMap());
+
+        // packages scanned so far, as directory prefixes ("a/b/")
+        private final Set<String> scannedPrefixes;
+        // facet classes by entry name
+        private final Map<String,List<WideaFacetDescriptor>> classes;
+
+        private JarFacets(Set<String> scannedPrefixes, Map<String,List<WideaFacetDescriptor>> classes) {
+            this.scannedPrefixes = scannedPrefixes;
+            this.classes = classes;
+        }
+
+        boolean isScanned(String prefix) {
+            for (String p : scannedPrefixes) {
+                if (prefix.startsWith(p)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        Map<String,List<WideaFacetDescriptor>> getClasses() {
+            return classes;
+        }
+
+        JarFacets with(Collection<String> prefixes, Map<String,List<WideaFacetDescriptor>> newClasses) {
+            Set<String> p = new HashSet<String>(scannedPrefixes);
+            p.addAll(prefixes);
+            Map<String,List<WideaFacetDescriptor>> c = new HashMap<String, List<WideaFacetDescriptor>>(classes);
+            c.putAll(newClasses);
+            return new JarFacets(Collections.unmodifiableSet(p), Collections.unmodifiableMap(c));
+        }
+
+        int getWeight() {
+            return 1 + classes.size();
+        }
+    }
+
+    /**
+     * Identifies the contents of a jar : the hash is only computed
+     * again when the length or the time stamp of the file change.
+     */
+    private static class JarStamp {
+
+        private final long length;
+        private final long lastModified;
+        private final String hash;
+
+        JarStamp(long length, long lastModified, String hash) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+    }
+
+    private final StringTableFile file = new StringTableFile(
+            new File(new File(PathManager.getSystemPath(), "woko"), "libraries.facets"), MAGIC, VERSION);
+
+    // access ordered : least recently used first
+    private final LinkedHashMap<String,JarFacets> facetsByHash = new LinkedHashMap<String, JarFacets>(16, 0.75f, true);
+    private final Map<String,JarStamp> stamps = new HashMap<String, JarStamp>();
+    private int weight = 0;
+    private boolean loaded = false;
+    private boolean dirty = false;
+
+    static LibraryFacetCache getInstance() {
+        return ApplicationManager.getApplication().getComponent(LibraryFacetCache.class);
+    }
+
+    public void initComponent() {
+    }
+
+    public void disposeComponent() {
+        save();
+    }
+
+    @NotNull
+    public String getComponentName() {
+        return "WokoLibraryFacetCache";
+    }
+
+    /**
+     * Return the hash of the contents of passed jar. The hash is only
+     * computed if the file changed since it was last computed.
+     */
+    String getHash(File jar) throws IOException {
+        String path = jar.getPath();
+        long length = jar.length();
+        long lastModified = jar.lastModified();
+        synchronized (this) {
+            ensureLoaded();
+            JarStamp stamp = stamps.get(path);
+            if (stamp!=null && stamp.length==length && stamp.lastModified==lastModified) {
+                return stamp.hash;
+            }
+        }
+        // hash outside the lock : other projects can use the cache meanwhile
+        String hash = hash(jar);
+        synchronized (this) {
+            stamps.put(path, new JarStamp(length, lastModified, hash));
+            dirty = true;
+        }
+        return hash;
+    }
+
+    /**
+     * Return the facets of the jar with passed hash, {@link JarFacets#EMPTY}
+     * if the jar has not been scanned yet.
+     */
+    synchronized JarFacets get(String hash) {
+        ensureLoaded();
+        JarFacets jarFacets = facetsByHash.get(hash);
+        return jarFacets!=null ? jarFacets : JarFacets.EMPTY;
+    }
+
+    /**
+     * Add the packages scanned in the jar with passed hash, and the facets found
+     * in them, to the cached ones : other projects may have scanned other packages
+     * of the same jar meanwhile.
+     * @return the facets of the jar, for all the packages scanned so far
+     */
+    synchronized JarFacets merge(String hash, JarFacets scanned) {
+        ensureLoaded();
+        JarFacets previous = facetsByHash.get(hash);
+        JarFacets merged = previous!=null ? previous.with(scanned.scannedPrefixes, scanned.classes) : scanned;
+        facetsByHash.put(hash, merged);
+        weight += merged.getWeight() - (previous!=null ? previous.getWeight() : 0);
+        dirty = true;
+        evict();
+        return merged;
+    }
+
+    private void evict() {
+        if (weight <= MAX_WEIGHT) {
+            return;
+        }
+        Iterator<Map.Entry<String,JarFacets>> it = facetsByHash.entrySet().iterator();
+        // keep the most recent one, even if it's too big alone
+        while (weight > MAX_WEIGHT && facetsByHash.size() > 1) {
+            Map.Entry<String,JarFacets> eldest = it.next();
+            weight -= eldest.getValue().getWeight();
+            it.remove();
+        }
+        // forget the stamps of the evicted jars
+        for (Iterator<JarStamp> sit = stamps.values().iterator(); sit.hasNext(); ) {
+            if (!facetsByHash.containsKey(sit.next().hash)) {
+                sit.remove();
+            }
+        }
+    }
+
+    private static String hash(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch(NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        // streamed rather than mapped : a mapping would keep the jar
+        // locked on Windows until it's garbage collected
+        byte[] buffer = HASH_BUFFER.get();
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int read;
+            while ((read = in.read(buffer))!=-1) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest()) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    private void ensureLoaded() {
+        if (!loaded) {
+            loaded = true;
+            load();
+        }
+    }
+
+    private void load() {
+        try {
+            file.read(new StringTableFile.Reader() {
+                @Override
+                public void read(DataInputStream in, String[] strings) throws IOException {
+                    int nbStamps = in.readInt();
+                    for (int i = 0; i < nbStamps; i++) {
+                        String path = strings[in.readInt()];
+                        long length = in.readLong();
+                        long lastModified = in.readLong();
+                        stamps.put(path, new JarStamp(length, lastModified, strings[in.readInt()]));
+                    }
+                    // least recently used first, so that the order is kept
+                    int nbJars = in.readInt();
+                    for (int i = 0; i < nbJars; i++) {
+                        String hash = strings[in.readInt()];
+                        int nbPrefixes = in.readInt();
+                        List<String> prefixes = new ArrayList<String>(nbPrefixes);
+                        for (int j = 0; j < nbPrefixes; j++) {
+                            prefixes.add(strings[in.readInt()]);
+                        }
+                        int nbClasses = in.readInt();
+                        Map<String,List<WideaFacetDescriptor>> classes = new HashMap<String, List<WideaFacetDescriptor>>();
+                        for (int j = 0; j < nbClasses; j++) {
+                            String entryName = strings[in.readInt()];
+                            int nbDescriptors = in.readInt();
+                            List<WideaFacetDescriptor> descriptors = new ArrayList<WideaFacetDescriptor>(nbDescriptors);
+                            for (int k = 0; k < nbDescriptors; k++) {
+                                descriptors.add(StringTableFile.readDescriptor(in, strings, FdType.Compiled));
+                            }
+                            classes.put(entryName, descriptors);
+                        }
+                        JarFacets jarFacets = JarFacets.EMPTY.with(prefixes, classes);
+                        facetsByHash.put(hash, jarFacets);
+                        weight += jarFacets.getWeight();
+                    }
+                }
+            });
+        } catch(Exception e) {
+            // corrupted or unreadable : jars will be scanned again
+            LOG.info("Unable to read library facets from " + file.getFile(), e);
+            facetsByHash.clear();
+            stamps.clear();
+            weight = 0;
+        }
+    }
+
+    /**
+     * Save the cache if it changed since it was loaded or last saved.
+     */
+    synchronized void save() {
+        if (!dirty) {
+            return;
+        }
+        dirty = false;
+        try {
+            file.write(new StringTableFile.Writer() {
+                @Override
+                public void addStrings(StringTableFile.Strings strings) {
+                    for (Map.Entry<String,JarStamp> e : stamps.entrySet()) {
+                        strings.add(e.getKey());
+                        strings.add(e.getValue().hash);
+                    }
+                    for (Map.Entry<String,JarFacets> e : facetsByHash.entrySet()) {
+                        strings.add(e.getKey());
+                        for (String prefix : e.getValue().scannedPrefixes) {
+                            strings.add(prefix);
+                        }
+                        for (Map.Entry<String,List<WideaFacetDescriptor>> c : e.getValue().classes.entrySet()) {
+                            strings.add(c.getKey());
+                            for (WideaFacetDescriptor fd : c.getValue()) {
+                                strings.addDescriptor(fd);
+                            }
+                        }
+                    }
+                }
+
+                @Override
+                public void write(DataOutputStream out, StringTableFile.Strings strings) throws IOException {
+                    out.writeInt(stamps.size());
+                    for (Map.Entry<String,JarStamp> e : stamps.entrySet()) {
+                        strings.write(out, e.getKey());
+                        out.writeLong(e.getValue().length);
+                        out.writeLong(e.getValue().lastModified);
+                        strings.write(out, e.getValue().hash);
+                    }
+                    out.writeInt(facetsByHash.size());
+                    for (Map.Entry<String,JarFacets> e : facetsByHash.entrySet()) {
+                        strings.write(out, e.getKey());
+                        JarFacets jarFacets = e.getValue();
+                        out.writeInt(jarFacets.scannedPrefixes.size());
+                        for (String prefix : jarFacets.scannedPrefixes) {
+                            strings.write(out, prefix);
+                        }
+                        out.writeInt(jarFacets.classes.size());
+                        for (Map.Entry<String,List<WideaFacetDescriptor>> c : jarFacets.classes.entrySet()) {
+                            strings.write(out, c.getKey());
+                            out.writeInt(c.getValue().size());
+                            for (WideaFacetDescriptor fd : c.getValue()) {
+                                strings.writeDescriptor(out, fd);
+                            }
+                        }
+                    }
+                }
+            });
+        } catch(IOException e) {
+            LOG.warn("Unable to write library facets to " + file.getFile(), e);
+        }
+    }
+
+}
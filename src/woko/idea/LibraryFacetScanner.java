@@ -0,0 +1,194 @@
+/*
+ * Copyright 2001-2012 Remi Vankeisbelck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package woko.idea;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ProjectRootManager;
+import com.intellij.openapi.util.Computable;
+import com.intellij.openapi.vfs.JarFileSystem;
+import com.intellij.openapi.vfs.VirtualFile;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Finds the compiled facets of the configured packages in the project's library
+ * jars, by reading the annotations from the class files (see {@link ClassFileFacetReader}).
+ * The facets found in a jar are kept in the application-wide {@link LibraryFacetCache},
+ * along with the packages that have been scanned, so that unchanged jars are never
+ * scanned again, even if they are moved or shared by several projects.
+ */
+class LibraryFacetScanner {
+
+    private static final Logger LOG = Logger.getInstance("#woko.idea.LibraryFacetScanner");
+
+    private final Project project;
+    private final ClassFileFacetReader classReader = new ClassFileFacetReader();
+    private byte[] entryBuffer = new byte[16 * 1024];
+
+    LibraryFacetScanner(Project project) {
+        this.project = project;
+    }
+
+    /**
+     * Return the index entries (one per facet class, with the path of the class
+     * in the jar) of the compiled facets found in the configured packages.
+     */
+    synchronized List<FacetIndex.FileEntry> scan(List<String> packages, ProgressIndicator indicator) {
+        LibraryFacetCache cache = LibraryFacetCache.getInstance();
+        List<FacetIndex.FileEntry> res = new ArrayList<FacetIndex.FileEntry>();
+        List<String> prefixes = new ArrayList<String>();
+        for (String p : packages) {
+            prefixes.add(p.replace('.', '/') + "/");
+        }
+        Set<String> hashes = new HashSet<String>();
+        for (File jar : getLibraryJars()) {
+            indicator.checkCanceled();
+            indicator.setText("Woko plugin scanning library : " + jar.getName());
+            try {
+                String hash = cache.getHash(jar);
+                if (!hashes.add(hash)) {
+                    // same jar in several libraries
+                    continue;
+                }
+                LibraryFacetCache.JarFacets jarFacets = cache.get(hash);
+                LibraryFacetCache.JarFacets scanned = scanPackages(jar, jarFacets, prefixes, indicator);
+                if (scanned!=null) {
+                    jarFacets = cache.merge(hash, scanned);
+                }
+                String jarPath = jar.getPath().replace(File.separatorChar, '/');
+                long stamp = jar.lastModified();
+                for (Map.Entry<String,List<WideaFacetDescriptor>> e : jarFacets.getClasses().entrySet()) {
+                    String entryName = e.getKey();
+                    int slash = entryName.lastIndexOf('/');
+                    String packageName = slash==-1 ? "" : entryName.substring(0, slash).replace('/', '.');
+                    int rank = FacetIndex.getPackageRank(packages, packageName);
+                    if (rank!=-1) {
+                        res.add(new FacetIndex.FileEntry(jarPath + "!/" + entryName, stamp, rank, e.getValue()));
+                    }
+                }
+            } catch(IOException e) {
+                LOG.info("Unable to scan library " + jar, e);
+            }
+        }
+        cache.save();
+        return res;
+    }
+
+    private List<File> getLibraryJars() {
+        return ApplicationManager.getApplication().runReadAction(new Computable<List<File>>() {
+            @Override
+            public List<File> compute() {
+                List<File> jars = new ArrayList<File>();
+                VirtualFile[] roots = ProjectRootManager.getInstance(project).orderEntries()
+                        .withoutSdk().librariesOnly().classes().getRoots();
+                for (VirtualFile root : roots) {
+                    VirtualFile jar = JarFileSystem.getInstance().getVirtualFileForJar(root);
+                    if (jar!=null) {
+                        jars.add(new File(jar.getPath()));
+                    }
+                }
+                return jars;
+            }
+        });
+    }
+
+    /**
+     * Scan the classes of the packages that have not been scanned yet in the jar.
+     * @return the packages scanned and the facets found in them, or <code>null</code>
+     * if all the packages had already been scanned
+     */
+    private LibraryFacetCache.JarFacets scanPackages(
+            File jar,
+            LibraryFacetCache.JarFacets jarFacets,
+            List<String> prefixes,
+            ProgressIndicator indicator) throws IOException {
+        List<String> toScan = new ArrayList<String>();
+        for (String prefix : prefixes) {
+            if (!jarFacets.isScanned(prefix)) {
+                toScan.add(prefix);
+            }
+        }
+        if (toScan.isEmpty()) {
+            return null;
+        }
+        Map<String,List<WideaFacetDescriptor>> classes = new HashMap<String, List<WideaFacetDescriptor>>();
+        ZipFile zip = new ZipFile(jar);
+        try {
+            for (Enumeration<? extends ZipEntry> entries = zip.entries(); entries.hasMoreElements(); ) {
+                ZipEntry entry = entries.nextElement();
+                String name = entry.getName();
+                if (entry.isDirectory() || !name.endsWith(".class") || !startsWithAny(name, toScan)) {
+                    continue;
+                }
+                indicator.checkCanceled();
+                try {
+                    List<WideaFacetDescriptor> descriptors = classReader.read(readEntry(zip, entry));
+                    if (!descriptors.isEmpty()) {
+                        classes.put(name, descriptors);
+                    }
+                } catch(IllegalArgumentException e) {
+                    LOG.info("Unable to read " + name + " in " + jar + " : " + e.getMessage());
+                }
+            }
+        } finally {
+            zip.close();
+        }
+        return LibraryFacetCache.JarFacets.EMPTY.with(toScan, classes);
+    }
+
+    private static boolean startsWithAny(String name, List<String> prefixes) {
+        for (String prefix : prefixes) {
+            if (name.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Inflate passed entry into the reused buffer.
+     */
+    private ByteBuffer readEntry(ZipFile zip, ZipEntry entry) throws IOException {
+        long size = entry.getSize();
+        if (size > entryBuffer.length) {
+            entryBuffer = new byte[(int)Math.max(size, entryBuffer.length * 2L)];
+        }
+        InputStream in = zip.getInputStream(entry);
+        try {
+            int n = 0;
+            int read;
+            while ((read = in.read(entryBuffer, n, entryBuffer.length - n))!=-1) {
+                n += read;
+                if (n==entryBuffer.length) {
+                    // unknown or wrong size : grow
+                    entryBuffer = Arrays.copyOf(entryBuffer, entryBuffer.length * 2);
+                }
+            }
+            return ByteBuffer.wrap(entryBuffer, 0, n);
+        } finally {
+            in.close();
+        }
+    }
+
+}
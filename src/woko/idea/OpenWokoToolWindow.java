@@ -20,7 +20,7 @@ public class OpenWokoToolWindow extends AnAction {
                 public void run() {
                     WokoProjectComponent wpc = project.getComponent(WokoProjectComponent.class);
                     if (wpc!=null) {
-                        wpc.refresh();
+                        wpc.refreshIfNeeded();
                     } else {
                         // no project component ??? display help popup
                         showHelpPopup(project);
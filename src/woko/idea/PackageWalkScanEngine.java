@@ -0,0 +1,130 @@
+/*
+ * Copyright 2001-2012 Remi Vankeisbelck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package woko.idea;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Computable;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.*;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Walks the configured packages recursively, and hands every class file
+ * to the sink.
+ */
+class PackageWalkScanEngine implements FacetScanEngine {
+
+    private final Project project;
+
+    PackageWalkScanEngine(Project project) {
+        this.project = project;
+    }
+
+    @Override
+    public String getName() {
+        return "package walk";
+    }
+
+    @Override
+    public List<ScanUnit> split(String packageName, int packageRank) {
+        List<ScanUnit> units = new ArrayList<ScanUnit>();
+        PsiPackage psiPkg = JavaPsiFacade.getInstance(project).findPackage(packageName);
+        if (psiPkg!=null) {
+            // the classes of the package itself, then one unit per sub-package tree
+            units.add(new ScanUnit(packageRank, packageName, false));
+            for (PsiPackage subPackage : psiPkg.getSubPackages()) {
+                units.add(new ScanUnit(packageRank, subPackage.getQualifiedName(), true));
+            }
+        }
+        return units;
+    }
+
+    @Override
+    public void scan(final ScanUnit unit, ProgressIndicator indicator, FileSink sink) {
+        indicator.checkCanceled();
+        indicator.setText("Woko plugin scanning package : " + unit.getPackageName());
+        PsiPackage psiPkg = ApplicationManager.getApplication().runReadAction(new Computable<PsiPackage>() {
+            @Override
+            public PsiPackage compute() {
+                return JavaPsiFacade.getInstance(project).findPackage(unit.getPackageName());
+            }
+        });
+        if (psiPkg!=null) {
+            scanRecursive(indicator, psiPkg, unit.getPackageRank(), unit.isRecursive(), sink);
+        }
+    }
+
+    private void scanRecursive(
+            ProgressIndicator indicator,
+            final PsiPackage psiPkg,
+            final int packageRank,
+            final boolean recursive,
+            final FileSink sink) {
+        indicator.checkCanceled();
+        indicator.setText2(psiPkg.getQualifiedName());
+        // list the files and the sub-packages of the package...
+        final List<VirtualFile> files = new ArrayList<VirtualFile>();
+        PsiPackage[] subPackages = ApplicationManager.getApplication().runReadAction(new Computable<PsiPackage[]>() {
+            @Override
+            public PsiPackage[] compute() {
+                if (!psiPkg.isValid()) {
+                    return PsiPackage.EMPTY_ARRAY;
+                }
+                Set<VirtualFile> found = new LinkedHashSet<VirtualFile>();
+                for (PsiClass psiClass : psiPkg.getClasses()) {
+                    PsiFile containingFile = psiClass.getContainingFile();
+                    VirtualFile vf = containingFile!=null ? containingFile.getVirtualFile() : null;
+                    if (vf!=null) {
+                        found.add(vf);
+                    }
+                }
+                files.addAll(found);
+                return recursive ? psiPkg.getSubPackages() : PsiPackage.EMPTY_ARRAY;
+            }
+        });
+        // ...then parse the files in small batches, one read action per batch,
+        // so that we don't prevent write actions for a whole package
+        for (int i = 0; i < files.size(); i += BATCH_SIZE) {
+            indicator.checkCanceled();
+            final List<VirtualFile> batch = files.subList(i, Math.min(files.size(), i + BATCH_SIZE));
+            ApplicationManager.getApplication().runReadAction(new Runnable() {
+                @Override
+                public void run() {
+                    PsiManager psiManager = PsiManager.getInstance(project);
+                    for (VirtualFile vf : batch) {
+                        if (vf.isValid()) {
+                            PsiFile psiFile = psiManager.findFile(vf);
+                            if (psiFile!=null) {
+                                sink.fileFound(psiFile, vf, packageRank);
+                            }
+                        }
+                    }
+                }
+            });
+        }
+        // recurse in sub-packages
+        for (PsiPackage subPackage : subPackages) {
+            scanRecursive(indicator, subPackage, packageRank, true, sink);
+        }
+    }
+
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2001-2012 Remi Vankeisbelck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package woko.idea;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Computable;
+import com.intellij.psi.JavaPsiFacade;
+import com.intellij.psi.PsiClass;
+import com.intellij.psi.PsiManager;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.psi.util.PsiModificationTracker;
+
+import java.util.*;
+
+/**
+ * Type hierarchy of the facet resolver, read from the PSI. The super types
+ * of a type are computed once, until the structure of the Java code changes.
+ */
+class PsiTypeHierarchy implements FacetResolver.TypeHierarchy {
+
+    private static final String OBJECT = "java.lang.Object";
+    private static final Set<String> PRIMITIVES = new HashSet<String>(Arrays.asList(
+            "boolean", "byte", "char", "short", "int", "long", "float", "double", "void"));
+
+    private final Project project;
+    private final PsiModificationTracker modificationTracker;
+    private final Map<String,List<String>> supertypes = new HashMap<String, List<String>>();
+    private final Set<String> unknownTypes = new HashSet<String>();
+    private long supertypesModificationCount = -1;
+
+    PsiTypeHierarchy(Project project) {
+        this.project = project;
+        this.modificationTracker = PsiManager.getInstance(project).getModificationTracker();
+    }
+
+    @Override
+    public long getModificationCount() {
+        return modificationTracker.getJavaStructureModificationCount();
+    }
+
+    @Override
+    public List<String> getSupertypes(final String typeName) {
+        long modificationCount = getModificationCount();
+        synchronized (supertypes) {
+            if (modificationCount!=supertypesModificationCount) {
+                supertypes.clear();
+                unknownTypes.clear();
+                supertypesModificationCount = modificationCount;
+            }
+            List<String> res = supertypes.get(typeName);
+            if (res!=null) {
+                return res;
+            }
+        }
+        final boolean[] unknown = new boolean[1];
+        List<String> res = ApplicationManager.getApplication().runReadAction(new Computable<List<String>>() {
+            @Override
+            public List<String> compute() {
+                return computeSupertypes(typeName, unknown);
+            }
+        });
+        synchronized (supertypes) {
+            if (modificationCount==supertypesModificationCount) {
+                supertypes.put(typeName, res);
+                if (unknown[0]) {
+                    unknownTypes.add(typeName);
+                }
+            }
+        }
+        return res;
+    }
+
+    @Override
+    public boolean isKnownType(String typeName) {
+        if (typeName.endsWith("[]") || PRIMITIVES.contains(typeName)) {
+            return true;
+        }
+        getSupertypes(typeName);
+        synchronized (supertypes) {
+            return !unknownTypes.contains(typeName);
+        }
+    }
+
+    private List<String> computeSupertypes(String typeName, boolean[] unknown) {
+        Set<String> res = new LinkedHashSet<String>();
+        res.add(typeName);
+        PsiClass psiClass = JavaPsiFacade.getInstance(project).findClass(typeName, GlobalSearchScope.allScope(project));
+        unknown[0] = psiClass==null;
+        if (psiClass!=null) {
+            // the superclasses first...
+            List<PsiClass> classes = new ArrayList<PsiClass>();
+            Set<PsiClass> visited = new HashSet<PsiClass>();
+            for (PsiClass c = psiClass; c!=null && visited.add(c); c = c.getSuperClass()) {
+                classes.add(c);
+                addName(res, c);
+            }
+            // ...then their interfaces, breadth first
+            LinkedList<PsiClass> queue = new LinkedList<PsiClass>();
+            for (PsiClass c : classes) {
+                queue.addAll(Arrays.asList(c.getInterfaces()));
+            }
+            while (!queue.isEmpty()) {
+                PsiClass i = queue.removeFirst();
+                if (visited.add(i)) {
+                    addName(res, i);
+                    queue.addAll(Arrays.asList(i.getInterfaces()));
+                }
+            }
+        }
+        res.remove(OBJECT);
+        res.add(OBJECT);
+        return Collections.unmodifiableList(new ArrayList<String>(res));
+    }
+
+    private static void addName(Set<String> names, PsiClass c) {
+        String qn = c.getQualifiedName();
+        if (qn!=null) {
+            names.add(qn);
+        }
+    }
+
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2001-2012 Remi Vankeisbelck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package woko.idea;
+
+import java.io.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Binary file made of a magic number, a version, a table of the strings, and
+ * contents that reference the strings by index. The file is replaced only
+ * once the new contents have been completely written to a temp file of their
+ * own, and reads and writes are serialized.
+ */
+class StringTableFile {
+
+    /**
+     * The strings of the contents being written, by index.
+     */
+    static class Strings {
+
+        private final Map<String,Integer> indices = new LinkedHashMap<String, Integer>();
+
+        void add(String s) {
+            if (!indices.containsKey(s)) {
+                indices.put(s, indices.size());
+            }
+        }
+
+        void addDescriptor(WideaFacetDescriptor fd) {
+            add(fd.getName());
+            add(fd.getProfileId());
+            add(fd.getTargetObjectTypeName());
+            add(fd.getFacetClassName());
+        }
+
+        void write(DataOutputStream out, String s) throws IOException {
+            out.writeInt(indices.get(s));
+        }
+
+        /**
+         * Write the name, profile, target type and class of passed descriptor.
+         */
+        void writeDescriptor(DataOutputStream out, WideaFacetDescriptor fd) throws IOException {
+            write(out, fd.getName());
+            write(out, fd.getProfileId());
+            write(out, fd.getTargetObjectTypeName());
+            write(out, fd.getFacetClassName());
+        }
+    }
+
+    interface Writer {
+
+        /**
+         * Add all the strings the contents reference.
+         */
+        void addStrings(Strings strings);
+
+        void write(DataOutputStream out, Strings strings) throws IOException;
+    }
+
+    interface Reader {
+
+        void read(DataInputStream in, String[] strings) throws IOException;
+    }
+
+    private final File file;
+    private final int magic;
+    private final int version;
+
+    StringTableFile(File file, int magic, int version) {
+        this.file = file;
+        this.magic = magic;
+        this.version = version;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Read the descriptor written by {@link Strings#writeDescriptor}.
+     */
+    static WideaFacetDescriptor readDescriptor(DataInputStream in, String[] strings, FdType type) throws IOException {
+        return new WideaFacetDescriptor(
+                strings[in.readInt()],
+                strings[in.readInt()],
+                strings[in.readInt()],
+                strings[in.readInt()],
+                type);
+    }
+
+    /**
+     * Read the contents of the file.
+     * @return <code>false</code> if there is no file, or if it has another format or version
+     */
+    synchronized boolean read(Reader reader) throws IOException {
+        if (!file.exists()) {
+            return false;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt()!=magic || in.readInt()!=version) {
+                return false;
+            }
+            String[] strings = new String[in.readInt()];
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = in.readUTF();
+            }
+            reader.read(in, strings);
+            return true;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Replace the file with passed contents.
+     */
+    synchronized void write(Writer writer) throws IOException {
+        Strings strings = new Strings();
+        writer.addStrings(strings);
+        File dir = file.getParentFile();
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Unable to create directory " + dir);
+        }
+        File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(magic);
+                out.writeInt(version);
+                out.writeInt(strings.indices.size());
+                for (String s : strings.indices.keySet()) {
+                    out.writeUTF(s);
+                }
+                writer.write(out, strings);
+            } finally {
+                out.close();
+            }
+            // replace the previous file only once completely written
+            if (file.exists() && !file.delete()) {
+                throw new IOException("Unable to replace " + file);
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Unable to rename " + tmp + " to " + file);
+            }
+        } finally {
+            if (tmp.exists()) {
+                tmp.delete();
+            }
+        }
+    }
+
+}
@@ -1,14 +1,46 @@
 package woko.idea;
 
+import com.intellij.psi.PsiAnnotation;
+import com.intellij.psi.PsiClass;
+import com.intellij.psi.SmartPsiElementPointer;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 public class WideaFacetDescriptor {
 
+    /**
+     * Separates the fields in the search key. Can't be typed in the filter
+     * field, so a filter never matches across two fields.
+     */
+    public static final char SEARCH_KEY_SEPARATOR = '\u0000';
+
+    /**
+     * Number of searchable fields (name, profileId, targetObjectType, facetClass).
+     */
+    public static final int NB_SEARCH_FIELDS = 4;
+
+    public static final int FIELD_NAME = 0;
+    public static final int FIELD_PROFILE_ID = 1;
+    public static final int FIELD_TARGET_OBJECT_TYPE = 2;
+    public static final int FIELD_FACET_CLASS = 3;
+
     private final String name;
     private final String profileId;
     private final String targetObjectTypeName;
     private final String facetClassName;
     private final FdType type;
+    // descriptors are used as hash keys when merging scan results
+    private final int hashCode;
+    // lower-cased name, profileId, targetObjectType and facetClass,
+    // computed once so that filtering doesn't lower-case for every row
+    private final String searchKey;
+    // start of each field in the search key, plus the key's length
+    private final int[] searchKeyOffsets;
+    private final boolean hasEmptyField;
+    // facet class and key annotation, captured when the descriptor is
+    // created from the PSI (null for descriptors loaded from disk)
+    private final SmartPsiElementPointer<PsiClass> facetClassPointer;
+    private final SmartPsiElementPointer<PsiAnnotation> facetKeyPointer;
 
     public WideaFacetDescriptor(
             @NotNull String name,
@@ -16,11 +48,40 @@ public class WideaFacetDescriptor {
             @NotNull String targetObjectTypeName,
             @NotNull String facetClassName,
             @NotNull FdType type) {
+        this(name, profileId, targetObjectTypeName, facetClassName, type, null, null);
+    }
+
+    public WideaFacetDescriptor(
+            @NotNull String name,
+            @NotNull String profileId,
+            @NotNull String targetObjectTypeName,
+            @NotNull String facetClassName,
+            @NotNull FdType type,
+            @Nullable SmartPsiElementPointer<PsiClass> facetClassPointer,
+            @Nullable SmartPsiElementPointer<PsiAnnotation> facetKeyPointer) {
+        this.facetClassPointer = facetClassPointer;
+        this.facetKeyPointer = facetKeyPointer;
         this.name = name;
         this.profileId = profileId;
         this.targetObjectTypeName = targetObjectTypeName;
         this.facetClassName = facetClassName;
         this.type = type;
+        this.hashCode = computeHashCode();
+        StringBuilder key = new StringBuilder();
+        this.searchKeyOffsets = new int[NB_SEARCH_FIELDS + 1];
+        for (int i = 0; i < NB_SEARCH_FIELDS; i++) {
+            if (i > 0) {
+                key.append(SEARCH_KEY_SEPARATOR);
+            }
+            searchKeyOffsets[i] = key.length();
+            key.append(getSearchField(i).toLowerCase());
+        }
+        searchKeyOffsets[NB_SEARCH_FIELDS] = key.length();
+        this.searchKey = key.toString();
+        this.hasEmptyField = name.length()==0
+                || profileId.length()==0
+                || targetObjectTypeName.length()==0
+                || facetClassName.length()==0;
     }
 
     public String getName() {
@@ -43,6 +104,62 @@ public class WideaFacetDescriptor {
         return type;
     }
 
+    /**
+     * Return the facet class, if it has been captured and is still valid.
+     * Must be called inside a read action.
+     */
+    @Nullable
+    public PsiClass getFacetClass() {
+        PsiClass psiClass = facetClassPointer==null ? null : facetClassPointer.getElement();
+        return psiClass!=null && psiClass.isValid() ? psiClass : null;
+    }
+
+    /**
+     * Return the <code>@FacetKey</code> annotation of the descriptor, if it has been
+     * captured and is still valid. Must be called inside a read action.
+     */
+    @Nullable
+    public PsiAnnotation getFacetKeyAnnotation() {
+        PsiAnnotation annotation = facetKeyPointer==null ? null : facetKeyPointer.getElement();
+        return annotation!=null && annotation.isValid() ? annotation : null;
+    }
+
+    public String getSearchKey() {
+        return searchKey;
+    }
+
+    /**
+     * Return the searchable field at passed index (name, profileId,
+     * targetObjectType, facetClass).
+     */
+    public String getSearchField(int field) {
+        switch (field) {
+            case FIELD_NAME : return name;
+            case FIELD_PROFILE_ID : return profileId;
+            case FIELD_TARGET_OBJECT_TYPE : return targetObjectTypeName;
+            case FIELD_FACET_CLASS : return facetClassName;
+            default: throw new IndexOutOfBoundsException("field is out of bounds : " + field);
+        }
+    }
+
+    /**
+     * Return the start of the lower-cased field in the search key.
+     */
+    public int getSearchKeyStart(int field) {
+        return searchKeyOffsets[field];
+    }
+
+    /**
+     * Return the end (exclusive) of the lower-cased field in the search key.
+     */
+    public int getSearchKeyEnd(int field) {
+        return field + 1 < NB_SEARCH_FIELDS ? searchKeyOffsets[field + 1] - 1 : searchKeyOffsets[NB_SEARCH_FIELDS];
+    }
+
+    public boolean hasEmptyField() {
+        return hasEmptyField;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -50,6 +167,7 @@ public class WideaFacetDescriptor {
 
         WideaFacetDescriptor that = (WideaFacetDescriptor) o;
 
+        if (hashCode != that.hashCode) return false;
         if (!facetClassName.equals(that.facetClassName)) return false;
         if (!name.equals(that.name)) return false;
         if (!profileId.equals(that.profileId)) return false;
@@ -60,6 +178,10 @@ public class WideaFacetDescriptor {
 
     @Override
     public int hashCode() {
+        return hashCode;
+    }
+
+    private int computeHashCode() {
         int result = name.hashCode();
         result = 31 * result + profileId.hashCode();
         result = 31 * result + targetObjectTypeName.hashCode();
@@ -16,39 +16,90 @@
 
 package woko.idea;
 
+import com.intellij.codeInsight.daemon.DaemonCodeAnalyzer;
+import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.components.ProjectComponent;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.project.DumbService;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ProjectRootManager;
 import com.intellij.openapi.ui.MessageType;
+import com.intellij.openapi.util.Computable;
 import com.intellij.openapi.util.IconLoader;
 import com.intellij.openapi.vfs.*;
+import com.intellij.openapi.vfs.newvfs.BulkFileListener;
+import com.intellij.openapi.vfs.newvfs.events.VFileDeleteEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileMoveEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFilePropertyChangeEvent;
 import com.intellij.openapi.wm.*;
+import com.intellij.pom.Navigatable;
 import com.intellij.psi.*;
-import com.intellij.psi.impl.source.PsiImmediateClassType;
 import com.intellij.psi.search.GlobalSearchScope;
-import com.intellij.psi.xml.XmlDocument;
 import com.intellij.psi.xml.XmlFile;
-import com.intellij.psi.xml.XmlTag;
 import com.intellij.ui.content.Content;
 import com.intellij.ui.content.ContentFactory;
+import com.intellij.util.Alarm;
 import org.jetbrains.annotations.NotNull;
-import org.jetbrains.plugins.groovy.lang.psi.GrReferenceElement;
-import org.jetbrains.plugins.groovy.lang.psi.api.GroovyResolveResult;
-import org.jetbrains.plugins.groovy.lang.psi.api.statements.expressions.GrReferenceExpression;
 
 import javax.swing.*;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class WokoProjectComponent implements ProjectComponent {
 
     public static final Icon WOKO_ICON = IconLoader.findIcon("/woko/idea/woko.png");
 
+    private static final Logger LOG = Logger.getInstance("#woko.idea.WokoProjectComponent");
+
+    /**
+     * Always walk the packages (<code>woko.idea.packageWalk</code> system property),
+     * to compare the scan engines : both log their time and files scanned.
+     */
+    private static final boolean PACKAGE_WALK_ONLY = Boolean.getBoolean("woko.idea.packageWalk");
+
     private final Project project;
     private GlobalSearchScope projectScope;
-    private List<WideaFacetDescriptor> facetDescriptors = Collections.emptyList();
+    private FacetAnnotationReader annotationReader;
+    private LibraryFacetScanner libraryScanner;
+    private volatile List<WideaFacetDescriptor> facetDescriptors = Collections.emptyList();
+    // the facets the inspections last ran against, by name (EDT only)
+    private Map<String,List<WideaFacetDescriptor>> inspectedByName = Collections.emptyMap();
+    private FacetSearchIndex searchIndex = null;
+    private volatile FacetSnapshot snapshot = null;
+    private FacetResolver resolver = null;
+    // one lock per lazy holder : the EDT must not wait for the search index
+    private final Object searchIndexLock = new Object();
+    private final Object snapshotLock = new Object();
+    private final Object resolverLock = new Object();
+    private PsiTypeHierarchy typeHierarchy;
+    private FacetOverrideAnalysis overrideAnalysis;
+    private final FacetIndex facetIndex = new FacetIndex();
+    private FacetIndexStore indexStore;
 
     private WokoToolWindow toolWindow = new WokoToolWindow();
     private List<String> facetPackages = null;
 
+    // packages declared in the web descriptors, re-derived when a descriptor changes
+    private FacetPackagesDiscovery packagesDiscovery;
+    private volatile List<String> configPackages = null;
+    private Alarm configAlarm;
+
+    // incremented for each refresh request, so that superseded scans can bail out
+    private volatile int scanGeneration = 0;
+    private volatile ProgressIndicator runningScan = null;
+
+    // files changed since they were indexed, re-parsed in the background
+    private final Set<VirtualFile> dirtyFiles = new LinkedHashSet<VirtualFile>();
+    private Alarm dirtyFilesAlarm;
+
     public WokoProjectComponent(Project project) {
         this.project = project;
     }
@@ -64,10 +115,6 @@ public class WokoProjectComponent implements ProjectComponent {
         return "WokoProjectComponent";
     }
 
-    private boolean isGroovy(PsiClass psiClass) {
-        return psiClass != null && psiClass.getLanguage().getID().equals("Groovy");
-    }
-
 
     public WokoToolWindow getToolWindow() {
         return toolWindow;
@@ -94,13 +141,114 @@ public class WokoProjectComponent implements ProjectComponent {
         registerWokoToolWindow();
 
         projectScope = GlobalSearchScope.projectScope(project);
+        annotationReader = new FacetAnnotationReader(project);
+        typeHierarchy = new PsiTypeHierarchy(project);
+        overrideAnalysis = new FacetOverrideAnalysis(typeHierarchy);
+        packagesDiscovery = new FacetPackagesDiscovery(project);
+        libraryScanner = new LibraryFacetScanner(project);
         // init tool window
         toolWindow.init(project);
+
+        // fill the table from the stored index (if any), and
+        // validate it in the background once indexing is done
+        indexStore = new FacetIndexStore(project);
+        if (indexStore.load(facetIndex)) {
+            facetPackages = facetIndex.getPackages();
+            setFacetDescriptors(facetIndex.getDescriptors(), true);
+            toolWindow.refreshPackages();
+            toolWindow.refreshTable();
+            DumbService.getInstance(project).runWhenSmart(new Runnable() {
+                @Override
+                public void run() {
+                    if (!project.isDisposed()) {
+                        refresh();
+                    }
+                }
+            });
+        }
+
+        // keep the index up to date with changes in the project
+        dirtyFilesAlarm = new Alarm(Alarm.ThreadToUse.POOLED_THREAD, project);
+        configAlarm = new Alarm(Alarm.ThreadToUse.POOLED_THREAD, project);
+        PsiManager.getInstance(project).addPsiTreeChangeListener(new PsiTreeChangeAdapter() {
+            @Override
+            public void childAdded(PsiTreeChangeEvent event) {
+                fileChanged(event.getFile());
+            }
+
+            @Override
+            public void childRemoved(PsiTreeChangeEvent event) {
+                fileChanged(event.getFile());
+            }
+
+            @Override
+            public void childReplaced(PsiTreeChangeEvent event) {
+                fileChanged(event.getFile());
+            }
+
+            @Override
+            public void childrenChanged(PsiTreeChangeEvent event) {
+                fileChanged(event.getFile());
+            }
+
+            @Override
+            public void childMoved(PsiTreeChangeEvent event) {
+                fileChanged(event.getFile());
+            }
+        }, project);
+        project.getMessageBus().connect(project).subscribe(VirtualFileManager.VFS_CHANGES, new BulkFileListener() {
+            @Override
+            public void before(List<? extends VFileEvent> events) {
+                for (VFileEvent event : events) {
+                    if (event instanceof VFileDeleteEvent || event instanceof VFileMoveEvent) {
+                        fileRemoved(event.getPath());
+                    } else if (event instanceof VFilePropertyChangeEvent
+                            && VirtualFile.PROP_NAME.equals(((VFilePropertyChangeEvent)event).getPropertyName())) {
+                        // renamed : the new path gets indexed after the change
+                        fileRemoved(event.getPath());
+                    }
+                }
+            }
+
+            @Override
+            public void after(List<? extends VFileEvent> events) {
+                for (VFileEvent event : events) {
+                    String path = event.getPath();
+                    if (FacetPackagesDiscovery.isDescriptor(path.substring(path.lastIndexOf('/') + 1))) {
+                        descriptorChanged();
+                    }
+                    if (!(event instanceof VFileDeleteEvent)) {
+                        VirtualFile vf = event.getFile();
+                        if (vf!=null && vf.isValid() && !vf.isDirectory()) {
+                            fileChanged(vf);
+                        }
+                    }
+                }
+            }
+        });
     }
 
     public void projectClosed() {
-        // called when project is being closed
-        facetDescriptors = Collections.emptyList();
+        // called when project is being closed : cancel any pending scan
+        scanGeneration++;
+        if (runningScan!=null) {
+            runningScan.cancel();
+            runningScan = null;
+        }
+        setFacetDescriptors(Collections.<WideaFacetDescriptor>emptyList(), false);
+        if (dirtyFilesAlarm!=null) {
+            dirtyFilesAlarm.cancelAllRequests();
+        }
+        if (configAlarm!=null) {
+            configAlarm.cancelAllRequests();
+        }
+        synchronized (dirtyFiles) {
+            dirtyFiles.clear();
+        }
+        // store the index for next time
+        if (facetPackages!=null && indexStore!=null) {
+            indexStore.save(facetIndex);
+        }
 
         // unregister the tool window
         ToolWindowManager toolWindowManager = ToolWindowManager.getInstance(project);
@@ -108,6 +256,24 @@ public class WokoProjectComponent implements ProjectComponent {
 
     }
 
+    /**
+     * Open the facet class of passed descriptor, at its key. Uses the class captured
+     * by the scan, and only looks the class up by name if it's no more valid.
+     */
+    public boolean openInEditor(WideaFacetDescriptor fd) {
+        PsiAnnotation facetKey = fd.getFacetKeyAnnotation();
+        if (facetKey instanceof Navigatable && ((Navigatable)facetKey).canNavigate()) {
+            ((Navigatable)facetKey).navigate(true);
+            return true;
+        }
+        PsiClass c = fd.getFacetClass();
+        if (c!=null) {
+            c.getContainingFile().navigate(true);
+            return true;
+        }
+        return openClassInEditor(fd.getFacetClassName());
+    }
+
     public boolean openClassInEditor(String fqcn) {
         if (fqcn==null) {
             return false;
@@ -124,6 +290,133 @@ public class WokoProjectComponent implements ProjectComponent {
         return facetDescriptors;
     }
 
+    /**
+     * Return the search index for the current facet descriptors.
+     */
+    FacetSearchIndex getSearchIndex() {
+        List<WideaFacetDescriptor> descriptors = facetDescriptors;
+        synchronized (searchIndexLock) {
+            if (searchIndex==null || searchIndex.getDescriptors()!=descriptors) {
+                searchIndex = new FacetSearchIndex(descriptors);
+            }
+            return searchIndex;
+        }
+    }
+
+    /**
+     * Return the table snapshot (with presorted columns) for the
+     * current facet descriptors.
+     */
+    FacetSnapshot getSnapshot() {
+        List<WideaFacetDescriptor> descriptors = facetDescriptors;
+        synchronized (snapshotLock) {
+            if (snapshot==null || snapshot.getDescriptors()!=descriptors) {
+                snapshot = new FacetSnapshot(descriptors);
+            }
+            return snapshot;
+        }
+    }
+
+    /**
+     * Return the table snapshot for the current facet descriptors if it
+     * has already been built, <code>null</code> otherwise. Never blocks :
+     * for the EDT, that gets the snapshot when it's built otherwise.
+     */
+    FacetSnapshot getSnapshotIfBuilt() {
+        FacetSnapshot s = snapshot;
+        return s!=null && s.getDescriptors()==facetDescriptors ? s : null;
+    }
+
+    /**
+     * Return the resolver for the current facet descriptors.
+     */
+    FacetResolver getResolver() {
+        List<WideaFacetDescriptor> descriptors = facetDescriptors;
+        synchronized (resolverLock) {
+            if (resolver==null || resolver.getDescriptors()!=descriptors) {
+                resolver = new FacetResolver(descriptors);
+            }
+            return resolver;
+        }
+    }
+
+    /**
+     * Find the facet JFacets would pick for passed name, profiles (most
+     * specific first) and target type. Don't call from the EDT : the type
+     * hierarchy may have to be read from the PSI.
+     */
+    FacetResolver.Resolution resolveFacet(String name, List<String> profiles, String typeName) {
+        return getResolver().resolve(name, FacetResolver.getProfileChain(profiles), typeName, typeHierarchy);
+    }
+
+    /**
+     * Return the override analysis of the facets of passed file, by descriptor.
+     * Don't call from the EDT : the type hierarchy may have to be read from the PSI.
+     */
+    Map<WideaFacetDescriptor,FacetOverrideAnalysis.Result> analyzeOverrides(String path) {
+        Map<WideaFacetDescriptor,FacetOverrideAnalysis.Result> res =
+                new LinkedHashMap<WideaFacetDescriptor, FacetOverrideAnalysis.Result>();
+        FacetIndex.FileEntry entry = facetPackages==null ? null : facetIndex.get(path);
+        if (entry!=null) {
+            Map<String,List<WideaFacetDescriptor>> byName = facetIndex.getDescriptorsByName();
+            for (WideaFacetDescriptor fd : entry.getDescriptors()) {
+                List<WideaFacetDescriptor> sameName = byName.get(fd.getName());
+                FacetOverrideAnalysis.Result r = sameName==null ? null : overrideAnalysis.analyze(fd, sameName);
+                if (r!=null) {
+                    res.put(fd, r);
+                }
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Swap the facets shown in the tool window, and re-run the inspections if
+     * <code>restartInspections</code> and the facets of some name have changed
+     * (the facets of a file are analyzed against the other facets of their name).
+     */
+    private void setFacetDescriptors(List<WideaFacetDescriptor> descriptors, boolean restartInspections) {
+        facetDescriptors = descriptors;
+        if (restartInspections && !project.isDisposed()) {
+            Map<String,List<WideaFacetDescriptor>> byName = facetIndex.getDescriptorsByName();
+            if (!byName.equals(inspectedByName)) {
+                inspectedByName = byName;
+                DaemonCodeAnalyzer.getInstance(project).restart();
+            }
+        }
+        // build the snapshot and the search index in the background : the
+        // snapshot is handed to the table once built, and the search index
+        // is most probably ready when the user starts typing
+        ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
+            @Override
+            public void run() {
+                final FacetSnapshot built = getSnapshot();
+                ApplicationManager.getApplication().invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!project.isDisposed() && built.getDescriptors()==facetDescriptors) {
+                            toolWindow.showSnapshot(built);
+                        }
+                    }
+                });
+                getSearchIndex();
+                overrideAnalysis.retainNames(facetIndex.getDescriptorsByName().keySet());
+            }
+        });
+    }
+
+    /**
+     * Show the facets from the index if it has already been built, or
+     * run a full scan otherwise.
+     */
+    public void refreshIfNeeded() {
+        if (facetPackages==null) {
+            refresh();
+        } else {
+            toolWindow.refreshContents();
+        }
+    }
+
     private void setStatusBarMessage(final String msg) {
         SwingUtilities.invokeLater(new Runnable() {
             @Override
@@ -134,257 +427,469 @@ public class WokoProjectComponent implements ProjectComponent {
         });
     }
 
+    /**
+     * Rescans the facet packages in a cancellable background task. The task
+     * reads PSI under short read actions (one per batch of files) so that it never blocks
+     * the EDT, and publishes its results in one go when it completes. Calling
+     * <code>refresh()</code> while a scan is running cancels the running scan : only
+     * the latest request gets published. The files that did not change since
+     * they were indexed are not parsed again, see {@link #reload()}.
+     */
     public void refresh() {
-        setStatusBarMessage("Refreshing facets in the project...");
-        VirtualFile baseDir = project.getBaseDir();
-        if (baseDir!=null) {
-            if (facetPackages == null) {
-                // grab packages from web.xml
-                VirtualFile f = baseDir.findFileByRelativePath("src/main/webapp/WEB-INF/web.xml");
-                List<String> pkgsFromConfig = new ArrayList<String>();
-                if (f!=null) {
-                    PsiFile file = PsiManager.getInstance(project).findFile(f);
-                    if (file != null && file instanceof XmlFile) {
-                        XmlFile xmlFile = (XmlFile)file;
-                        XmlDocument doc = xmlFile.getDocument();
-                        XmlTag[] tags = doc.getRootTag().getSubTags();
-                        for (XmlTag tag : tags) {
-                            if (tag.getName().equals("context-param")) {
-                                String pName = tag.getSubTagText("param-name");
-                                if (pName!=null && pName.equals("Woko.Facet.Packages")) {
-                                    String packagesStr = tag.getSubTagText("param-value");
-                                    if (packagesStr!=null) {
-                                        pkgsFromConfig.addAll(extractPackagesList(packagesStr));
-                                    }
-                                }
+        refresh(false);
+    }
+
+    /**
+     * Rescans the facet packages like {@link #refresh()}, parsing all the files
+     * again : the values of the constants used in the keys may come from other
+     * files, that have changed since.
+     */
+    public void reload() {
+        refresh(true);
+    }
+
+    private void refresh(final boolean reparse) {
+        // cancel any running scan, the new one supersedes it
+        final int generation = ++scanGeneration;
+        if (runningScan!=null) {
+            runningScan.cancel();
+            runningScan = null;
+        }
+        // facet packages have been initialized : we need to
+        // extract from the textField now (has to be done in the EDT)
+        final List<String> packagesFromTextField = facetPackages==null ?
+                null :
+                extractPackagesList(toolWindow.getFacetPackages());
+
+        ProgressManager.getInstance().run(new Task.Backgroundable(project, "Scanning Woko facets", true) {
+
+            private List<String> scannedPackages = null;
+            private Map<String,FacetIndex.FileEntry> scannedEntries = null;
+            private boolean noPackagesInConfig = false;
+
+            @Override
+            public void run(@NotNull ProgressIndicator indicator) {
+                if (generation!=scanGeneration) {
+                    // superseded before it even started
+                    return;
+                }
+                runningScan = indicator;
+                indicator.setIndeterminate(true);
+                indicator.setText("Refreshing facets in the project...");
+                // packages declared in the descriptors of all the modules (the
+                // file index is needed to find them)
+                List<String> pkgsFromConfig = DumbService.getInstance(project).runReadActionInSmartMode(
+                        new Computable<List<String>>() {
+                            @Override
+                            public List<String> compute() {
+                                return packagesDiscovery.getPackages();
                             }
-                        }
-                    }
+                        });
+                configPackages = pkgsFromConfig;
+                if (packagesFromTextField==null) {
+                    noPackagesInConfig = pkgsFromConfig.size() == 0;
+                    scannedPackages = withDefaultPackages(pkgsFromConfig);
+                } else {
+                    scannedPackages = packagesFromTextField;
                 }
-                if (pkgsFromConfig.size() == 0) {
+
+                // scan : unless reloading, files that did not change
+                // since they have been indexed are not parsed again
+                Map<String,FacetIndex.FileEntry> entries = new HashMap<String, FacetIndex.FileEntry>();
+                scanForFacets(indicator, generation, scannedPackages, reparse, entries);
+                scannedEntries = entries;
+            }
+
+            @Override
+            public void onSuccess() {
+                if (generation!=scanGeneration || scannedEntries==null) {
+                    // a more recent refresh has been requested, drop our results
+                    return;
+                }
+                runningScan = null;
+                // update fields : swap the whole list at once
+                facetPackages = scannedPackages;
+                facetIndex.reset(scannedPackages, scannedEntries);
+                setFacetDescriptors(facetIndex.getDescriptors(), true);
+                setStatusBarMessage("Woko plugin found " + facetDescriptors.size() + " facets");
+                ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        indexStore.save(facetIndex);
+                    }
+                });
+                // fire refresh for the tool window's table model
+                toolWindow.refreshContents();
+                if (noPackagesInConfig) {
                     toolWindow.balloonOnPackagesTextField("No packages found in web.xml !<br/> This can " +
                             " happen if you use a custom init, or <br/> if the project ain't even a Woko project !<br/>" +
                             "Add your facet package(s) to the list and refresh...");
                 }
-                // add default Woko packages
-                pkgsFromConfig.add("facets");
-                pkgsFromConfig.add("woko.facets.builtin");
-                facetPackages = pkgsFromConfig;
-            } else {
-                // facet packages have been initialized : we need to
-                // extract from the textField now !
-                facetPackages = extractPackagesList(toolWindow.getFacetPackages());
             }
 
-            // scan
-            List<WideaFacetDescriptor> descriptors = new ArrayList<WideaFacetDescriptor>();
-            Map<WideaFacetDescriptor,Long> refStamps = new HashMap<WideaFacetDescriptor,Long>();
-            Map<String,WideaFacetDescriptor> filesDescriptors = new HashMap<String, WideaFacetDescriptor>();
-            scanForFacets(facetPackages, descriptors, filesDescriptors, refStamps);
-
-            // update fields
-            facetDescriptors = descriptors;
+            @Override
+            public void onCancel() {
+                if (generation==scanGeneration) {
+                    runningScan = null;
+                    setStatusBarMessage("Woko plugin : facet scan cancelled");
+                }
+            }
+        });
+    }
 
-        } else {
-            facetDescriptors = Collections.emptyList();
+    private static List<String> withDefaultPackages(List<String> pkgsFromConfig) {
+        List<String> packages = new ArrayList<String>(pkgsFromConfig);
+        // add default Woko packages
+        for (String p : Arrays.asList("facets", "woko.facets.builtin")) {
+            if (!packages.contains(p)) {
+                packages.add(p);
+            }
         }
-        // fire refresh for the tool window's table model
-        toolWindow.refreshContents();
+        return packages;
     }
 
-    private void scanForFacets(
-            List<String> packageNamesFromConfig,
-            List<WideaFacetDescriptor> scannedDescriptors,
-            Map<String,WideaFacetDescriptor> filesDescriptors,
-            Map<WideaFacetDescriptor,Long> refStamps) {
-        // scan configured package for classes annotated with @FacetKey[List]
-        for (String pkgName : packageNamesFromConfig) {
-            setStatusBarMessage("Woko plugin scanning package : " + pkgName);
-            PsiPackage psiPkg = getPsiFacade().findPackage(pkgName);
-            if (psiPkg!=null) {
-                scanForFacetsRecursive(psiPkg, scannedDescriptors, filesDescriptors, refStamps);
+    private void descriptorChanged() {
+        if (facetPackages==null) {
+            // packages not derived yet : the first refresh will
+            return;
+        }
+        configAlarm.cancelAllRequests();
+        configAlarm.addRequest(new Runnable() {
+            @Override
+            public void run() {
+                updateConfigPackages();
             }
+        }, 500);
+    }
+
+    /**
+     * Derive the packages from the descriptors again, and rescan if they
+     * changed. The packages that have been added by hand are kept. Runs in
+     * a pooled thread.
+     */
+    private void updateConfigPackages() {
+        if (project.isDisposed()) {
+            return;
         }
-        setStatusBarMessage("Woko plugin found " + scannedDescriptors.size() + " facets");
-    }
-
-    private void scanForFacetsRecursive(
-            PsiPackage psiPkg,
-            List<WideaFacetDescriptor> descriptors,
-            Map<String,WideaFacetDescriptor> filesDescriptors,
-            Map<WideaFacetDescriptor,Long> refStamps) {
-        // scan classes in package
-        PsiClass[] psiClasses = psiPkg.getClasses();
-        for (PsiClass psiClass : psiClasses) {
-            List<WideaFacetDescriptor> classDescriptors = getFacetDescriptorsForClass(psiClass);
-            if (classDescriptors!=null) {
-                // we need to check if a descriptor already exists in previously scanned
-                // packages (re-implement JFacets' "first scanned wins" policy)
-                for (WideaFacetDescriptor fd : classDescriptors) {
-                    if (fd!=null && !descriptors.contains(fd)) {
-                        descriptors.add(fd);
-                        // set the files/descriptors entry and
-                        // update refresh stamp : if there already is a stamp then
-                        // keep it, otherwise grab the file's modif stamp
-                        PsiFile containingFile = psiClass.getContainingFile();
-                        VirtualFile vf = containingFile.getVirtualFile();
-                        if (vf!=null) {
-                            String absolutePath = vf.getPath();
-                            filesDescriptors.put(absolutePath, fd);
-                        }
+        final List<String> previous = configPackages;
+        final List<String> current = DumbService.getInstance(project).runReadActionInSmartMode(
+                new Computable<List<String>>() {
+                    @Override
+                    public List<String> compute() {
+                        return packagesDiscovery.getPackages();
+                    }
+                });
+        configPackages = current;
+        if (previous==null || previous.equals(current)) {
+            return;
+        }
+        ApplicationManager.getApplication().invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                if (facetPackages==null || project.isDisposed()) {
+                    return;
+                }
+                List<String> packages = withDefaultPackages(current);
+                for (String p : facetPackages) {
+                    if (!previous.contains(p) && !packages.contains(p)) {
+                        packages.add(p);
                     }
                 }
+                LOG.info("Facet packages changed in the web descriptors : " + packages);
+                facetPackages = packages;
+                toolWindow.refreshPackages();
+                refresh();
             }
-        }
-        // recurse in sub-packages
-        PsiPackage[] subPackages = psiPkg.getSubPackages();
-        for (PsiPackage subPackage : subPackages) {
-            scanForFacetsRecursive(subPackage, descriptors, filesDescriptors, refStamps);
-        }
+        });
     }
 
-    private List<WideaFacetDescriptor> getFacetDescriptorsForClass(PsiClass psiFacetClass) {
-        PsiModifierList modList = psiFacetClass.getModifierList();
-        List<WideaFacetDescriptor> res = new ArrayList<WideaFacetDescriptor>();
-        if (modList!=null) {
-            PsiAnnotation psiFacetKey = getAnnotation(psiFacetClass, "net.sourceforge.jfacets.annotations.FacetKey");
-            if (psiFacetKey!=null) {
-                res.add(createDescriptorForKey(psiFacetClass, psiFacetKey));
-            } else {
-                PsiAnnotation psiFacetKeyList = getAnnotation(psiFacetClass, "net.sourceforge.jfacets.annotations.FacetKeyList");
-                if (psiFacetKeyList!=null) {
-                    res.addAll(createDescriptorsForKeyList(psiFacetClass, psiFacetKeyList));
-                }
-            }
+    private void checkCanceled(ProgressIndicator indicator, int generation) {
+        indicator.checkCanceled();
+        if (generation!=scanGeneration) {
+            throw new ProcessCanceledException();
         }
-        return res;
     }
 
-    private List<WideaFacetDescriptor> createDescriptorsForKeyList(PsiClass psiFacetClass, PsiAnnotation psiFacetKeyList) {
-        PsiNameValuePair[] nvps = psiFacetKeyList.getParameterList().getAttributes();
-        List<WideaFacetDescriptor> res = new ArrayList<WideaFacetDescriptor>();
-        if (nvps.length==1) {
-            PsiNameValuePair nvp = nvps[0];
-            String name = nvp.getName();
-            if (name!=null && name.equals("keys")) {
-                PsiAnnotationMemberValue mv = nvp.getValue();
-                if (mv instanceof PsiArrayInitializerMemberValue) {
-                    PsiArrayInitializerMemberValue v = (PsiArrayInitializerMemberValue)nvp.getValue();
-                    if (v!=null) {
-                        PsiAnnotationMemberValue[] keys = v.getInitializers();
-                        for (PsiAnnotationMemberValue key : keys) {
-                            PsiAnnotation a = (PsiAnnotation)key;
-                            res.add(createDescriptorForKey(psiFacetClass, a));
+    private void scanForFacets(
+            final ProgressIndicator indicator,
+            final int generation,
+            final List<String> packageNamesFromConfig,
+            final boolean reparse,
+            final Map<String,FacetIndex.FileEntry> entries) {
+        // use the annotation index when possible : it only loads
+        // the annotated classes. Fall back to walking the packages when
+        // indexes are not ready, the annotations can't be found, or the
+        // walk is forced.
+        final FacetScanEngine engine = ApplicationManager.getApplication().runReadAction(new Computable<FacetScanEngine>() {
+            @Override
+            public FacetScanEngine compute() {
+                FacetScanEngine e = null;
+                if (!PACKAGE_WALK_ONLY && !DumbService.getInstance(project).isDumb()) {
+                    e = AnnotationIndexScanEngine.create(project);
+                }
+                return e!=null ? e : new PackageWalkScanEngine(project);
+            }
+        });
+        long start = System.currentTimeMillis();
+
+        // split the packages into units, and scan them concurrently, each
+        // unit producing its own partial result
+        final List<FacetScanEngine.ScanUnit> units = ApplicationManager.getApplication().runReadAction(
+                new Computable<List<FacetScanEngine.ScanUnit>>() {
+                    @Override
+                    public List<FacetScanEngine.ScanUnit> compute() {
+                        List<FacetScanEngine.ScanUnit> res = new ArrayList<FacetScanEngine.ScanUnit>();
+                        for (int rank = 0; rank < packageNamesFromConfig.size(); rank++) {
+                            res.addAll(engine.split(packageNamesFromConfig.get(rank), rank));
                         }
+                        return res;
                     }
-                } else if (mv!=null) {
-                    PsiElement[] children = mv.getChildren();
-                    for (PsiElement child : children) {
-                        if (child instanceof PsiAnnotation) {
-                            res.add(createDescriptorForKey(psiFacetClass, (PsiAnnotation)child));
+                });
+        final List<Map<String,FacetIndex.FileEntry>> partials = new ArrayList<Map<String,FacetIndex.FileEntry>>();
+        for (int i = 0; i < units.size(); i++) {
+            partials.add(new HashMap<String, FacetIndex.FileEntry>());
+        }
+        // the workers take the units in turn. They run outside of any read action :
+        // the engines acquire short read actions as they go, so that a pending
+        // write action never waits for a whole unit
+        final AtomicInteger nextUnit = new AtomicInteger();
+        final AtomicBoolean failed = new AtomicBoolean();
+        int nbWorkers = Math.max(1, Math.min(units.size(), Runtime.getRuntime().availableProcessors()));
+        List<Future<?>> workers = new ArrayList<Future<?>>();
+        for (int w = 0; w < nbWorkers; w++) {
+            workers.add(ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
+                @Override
+                public void run() {
+                    ProgressManager.getInstance().runProcess(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                for (int i = nextUnit.getAndIncrement(); i < units.size() && !failed.get();
+                                     i = nextUnit.getAndIncrement()) {
+                                    scanUnit(engine, units.get(i), partials.get(i), reparse, indicator, generation);
+                                }
+                            } catch(RuntimeException e) {
+                                failed.set(true);
+                                throw e;
+                            }
                         }
-                    }
+                    }, indicator);
+                }
+            }));
+        }
+        for (Future<?> worker : workers) {
+            try {
+                worker.get();
+            } catch(InterruptedException e) {
+                failed.set(true);
+                throw new ProcessCanceledException();
+            } catch(ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException)e.getCause();
                 }
+                throw new RuntimeException(e.getCause());
             }
         }
-        return res;
+        checkCanceled(indicator, generation);
+
+        // merge in unit order : units are sorted by package
+        // rank, so the first package a file is found in wins
+        for (Map<String,FacetIndex.FileEntry> partial : partials) {
+            for (FacetIndex.FileEntry entry : partial.values()) {
+                if (!entries.containsKey(entry.getPath())) {
+                    entries.put(entry.getPath(), entry);
+                }
+            }
+        }
+        // the compiled facets of the libraries are read from the class files
+        checkCanceled(indicator, generation);
+        for (FacetIndex.FileEntry entry : libraryScanner.scan(packageNamesFromConfig, indicator)) {
+            if (!entries.containsKey(entry.getPath())) {
+                entries.put(entry.getPath(), entry);
+            }
+        }
+        LOG.info("Scanned " + entries.size() + " files in " + units.size() + " units with " + engine.getName() +
+                " in " + (System.currentTimeMillis() - start) + "ms (" + annotationReader.getStatistics() + ")");
+        annotationReader.clearCaches();
     }
 
-    private String unquote(String text) {
-        return text!=null ? text.replace("\"", "") : null;
+    private void scanUnit(
+            FacetScanEngine engine,
+            FacetScanEngine.ScanUnit unit,
+            final Map<String,FacetIndex.FileEntry> partial,
+            final boolean reparse,
+            final ProgressIndicator indicator,
+            final int generation) {
+        engine.scan(unit, indicator, new FacetScanEngine.FileSink() {
+            @Override
+            public void fileFound(PsiFile psiFile, VirtualFile vf, int packageRank) {
+                checkCanceled(indicator, generation);
+                if (isInJar(vf)) {
+                    // read by the library scanner
+                    return;
+                }
+                if (!partial.containsKey(vf.getPath())) {
+                    partial.put(vf.getPath(), getFileEntry(psiFile, vf, packageRank, reparse));
+                }
+            }
+        });
     }
 
-    private String getValueFromResolveResult(ResolveResult rr) {
-        PsiElement elem = rr.getElement();
-        if (elem instanceof PsiField) {
-            PsiField pf = (PsiField)elem;
-            PsiExpression initializer = pf.getInitializer();
-            if (initializer!=null) {
-                return unquote(initializer.getText());
-            }
+    /**
+     * Return the index entry for passed file, reusing the current one if the
+     * file has not been modified since it was indexed, unless <code>reparse</code>.
+     */
+    private FacetIndex.FileEntry getFileEntry(PsiFile psiFile, VirtualFile vf, int packageRank, boolean reparse) {
+        String path = vf.getPath();
+        long stamp = vf.getTimeStamp();
+        FacetIndex.FileEntry current = reparse ? null : facetIndex.get(path);
+        if (current!=null && current.getStamp()==stamp) {
+            return current.withPackageRank(packageRank);
         }
-        return null;
+        List<WideaFacetDescriptor> descriptors = annotationReader.getFacetDescriptorsForFile(psiFile);
+        return new FacetIndex.FileEntry(path, stamp, packageRank, descriptors);
     }
 
-    private String getNvpValueAsText(PsiAnnotationMemberValue pv) {
-        if (pv!=null) {
-            if (pv instanceof GrReferenceElement<?>) {
-                GrReferenceElement<?> re = (GrReferenceElement<?>)pv;
-                GroovyResolveResult rr = re.advancedResolve();
-                return getValueFromResolveResult(rr);
-            } else if (pv instanceof PsiReferenceExpression) {
-                PsiReferenceExpression re = (PsiReferenceExpression)pv;
-                JavaResolveResult rr = re.advancedResolve(true);
-                return getValueFromResolveResult(rr);
-            } else {
-                return unquote(pv.getText());
-            }
+    private void fileChanged(PsiFile psiFile) {
+        if (psiFile instanceof PsiClassOwner) {
+            fileChanged(psiFile.getVirtualFile());
+        } else if (psiFile instanceof XmlFile && FacetPackagesDiscovery.isDescriptor(psiFile.getName())) {
+            descriptorChanged();
         }
-        return null;
     }
 
-    private WideaFacetDescriptor createDescriptorForKey(PsiClass psiFacetClass, PsiAnnotation psiFacetKey) {
-        String name = getNvpValueAsText(psiFacetKey.findAttributeValue("name"));
-        String profileId = getNvpValueAsText(psiFacetKey.findAttributeValue("profileId"));
-
-        String targetObjectType = null;
-        PsiAnnotationMemberValue pv = psiFacetKey.findAttributeValue("targetObjectType");
-        PsiType classType = null;
-        if (pv instanceof PsiClassObjectAccessExpression) {
-            PsiClassObjectAccessExpression cae = (PsiClassObjectAccessExpression)pv;
-            classType = cae.getType();
-        } else if (pv instanceof GrReferenceExpression) {
-            GrReferenceExpression refExpr = (GrReferenceExpression)pv;
-            classType = refExpr.getNominalType();
-        } else if (pv instanceof PsiLiteralExpression) {
-            // don't know why, but in some situations
-            // we get that type of values, which are always null...
-            // happens systematically with code found in dependencies
-            targetObjectType = "UNSUPPORTED YET!";
-        }
-        if (classType instanceof PsiImmediateClassType) {
-            PsiImmediateClassType ict = (PsiImmediateClassType)classType;
-            PsiType[] parameters = ict.getParameters();
-            if (parameters.length==1) {
-                targetObjectType = parameters[0].getCanonicalText();
-            }
-        }
+    private static boolean isInJar(VirtualFile vf) {
+        return vf.getFileSystem() instanceof JarFileSystem;
+    }
 
-        String facetClassName = psiFacetClass.getQualifiedName();
-        targetObjectType = targetObjectType==null ? "java.lang.Object" : targetObjectType;
-        if (name!=null && profileId!=null && targetObjectType!=null && facetClassName!=null) {
-            FdType type = null;
-            PsiClass psiClass = getPsiClass(facetClassName);
-            if (psiClass==null) {
-                type = FdType.Compiled;
-            } else {
-                type = isGroovy(psiClass) ? FdType.Groovy : FdType.Java;
+    /**
+     * Return <code>true</code> if passed file is a source file of this project : the
+     * VFS events are application-wide, and the jar entries are read by the library
+     * scanner.
+     */
+    private boolean isProjectSource(VirtualFile vf) {
+        return !isInJar(vf) && ProjectRootManager.getInstance(project).getFileIndex().isInSourceContent(vf);
+    }
+
+    private void fileChanged(VirtualFile vf) {
+        if (vf==null || facetPackages==null) {
+            // index not built yet
+            return;
+        }
+        if (!isProjectSource(vf)) {
+            return;
+        }
+        synchronized (dirtyFiles) {
+            dirtyFiles.add(vf);
+        }
+        dirtyFilesAlarm.cancelAllRequests();
+        dirtyFilesAlarm.addRequest(new Runnable() {
+            @Override
+            public void run() {
+                reindexDirtyFiles();
             }
-            return new WideaFacetDescriptor(name, profileId, targetObjectType, facetClassName, type);
+        }, 300);
+    }
+
+    private void fileRemoved(String path) {
+        if (facetPackages!=null && facetIndex.remove(path)) {
+            publishIndex();
         }
-        return null;
     }
 
-    public PsiAnnotation getAnnotation(PsiClass psiClass, String annotFqcn) {
-        PsiModifierList modifierList = psiClass.getModifierList();
-        if (modifierList==null) {
-            return null;
+    /**
+     * Re-parse the files that changed since the last update, and publish the
+     * updated descriptors. Runs in a pooled thread.
+     */
+    private void reindexDirtyFiles() {
+        if (runningScan!=null) {
+            // a full scan is running : try again when it's done
+            dirtyFilesAlarm.addRequest(new Runnable() {
+                @Override
+                public void run() {
+                    reindexDirtyFiles();
+                }
+            }, 300);
+            return;
+        }
+        final List<VirtualFile> files;
+        synchronized (dirtyFiles) {
+            files = new ArrayList<VirtualFile>(dirtyFiles);
+            dirtyFiles.clear();
         }
-        PsiAnnotation[] annots = modifierList.getAnnotations();
-        for (PsiAnnotation a : annots) {
-            String qn = a.getQualifiedName();
-            if (qn!=null) {
-                if (qn.equals(annotFqcn)) {
-                    return a;
+        boolean changed = false;
+        for (final VirtualFile vf : files) {
+            changed |= ApplicationManager.getApplication().runReadAction(new Computable<Boolean>() {
+                @Override
+                public Boolean compute() {
+                    return reindexFile(vf);
                 }
+            });
+        }
+        annotationReader.clearCaches();
+        if (changed) {
+            publishIndex();
+        }
+    }
+
+    /**
+     * Re-parse passed file and update its index entry.
+     * @return <code>true</code> if the descriptors of the index changed
+     */
+    private boolean reindexFile(VirtualFile vf) {
+        if (project.isDisposed()) {
+            return false;
+        }
+        if (!vf.isValid()) {
+            return facetIndex.remove(vf.getPath());
+        }
+        if (isInJar(vf)) {
+            // the entries of the jars belong to the library scanner
+            return false;
+        }
+        if (!isProjectSource(vf)) {
+            return facetIndex.remove(vf.getPath());
+        }
+        PsiFile psiFile = PsiManager.getInstance(project).findFile(vf);
+        if (!(psiFile instanceof PsiClassOwner)) {
+            return false;
+        }
+        int rank = facetIndex.getPackageRank(((PsiClassOwner)psiFile).getPackageName());
+        if (rank==-1) {
+            // not (or no more) in a facet package
+            return facetIndex.remove(vf.getPath());
+        }
+        List<WideaFacetDescriptor> descriptors = annotationReader.getFacetDescriptorsForFile(psiFile);
+        FacetIndex.FileEntry previous = facetIndex.get(vf.getPath());
+        if (previous!=null && previous.getPackageRank()==rank && previous.getDescriptors().equals(descriptors)) {
+            // same facets (e.g. a method has been edited) : keep the previous
+            // descriptors, only the stamp changes, and nothing is published
+            if (previous.getStamp()!=vf.getTimeStamp()) {
+                facetIndex.put(new FacetIndex.FileEntry(vf.getPath(), vf.getTimeStamp(), rank, previous.getDescriptors()));
             }
+            return false;
         }
-        return null;
+        facetIndex.put(new FacetIndex.FileEntry(vf.getPath(), vf.getTimeStamp(), rank, descriptors));
+        return true;
+    }
+
+    private void publishIndex() {
+        ApplicationManager.getApplication().invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                if (facetPackages!=null && !project.isDisposed()) {
+                    setFacetDescriptors(facetIndex.getDescriptors(), true);
+                    toolWindow.refreshTable();
+                }
+            }
+        });
     }
 
     public PsiClass getPsiClass(String fqcn) {
         try {
-            return getPsiFacade().findClass(fqcn, projectScope);
+            PsiClass c = getPsiFacade().findClass(fqcn, projectScope);
+            // compiled facets are in the libraries
+            return c!=null ? c : getPsiFacade().findClass(fqcn, GlobalSearchScope.allScope(project));
         } catch(Exception e) {
             return null;
         }
@@ -399,17 +904,27 @@ public class WokoProjectComponent implements ProjectComponent {
     }
 
     public static List<String> extractPackagesList(String packagesStr) {
-        String[] pkgNamesArr = packagesStr.
+        return splitList(packagesStr);
+    }
+
+    /**
+     * Split passed text into its non-empty items, separated by
+     * commas and/or whitespace.
+     */
+    public static List<String> splitList(String text) {
+        String[] itemsArr = text.
                 replace('\n', ',').
+                replace('\r', ',').
+                replace('\t', ',').
                 replace(' ', ',').
                 split(",");
-        List<String> pkgNames = new ArrayList<String>();
-        for (String s : pkgNamesArr) {
+        List<String> items = new ArrayList<String>();
+        for (String s : itemsArr) {
             if (s != null && !s.equals("")) {
-                pkgNames.add(s);
+                items.add(s);
             }
         }
-        return pkgNames;
+        return items;
     }
 
     public List<String> getFacetPackages() {
@@ -17,10 +17,13 @@
 package woko.idea;
 
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.ui.MessageType;
+import com.intellij.openapi.ui.Messages;
 import com.intellij.openapi.ui.popup.Balloon;
 import com.intellij.openapi.ui.popup.JBPopupFactory;
 import com.intellij.ui.awt.RelativePoint;
+import com.intellij.util.Alarm;
 
 import javax.swing.*;
 import javax.swing.event.ChangeEvent;
@@ -30,11 +33,10 @@ import javax.swing.event.DocumentListener;
 import javax.swing.table.TableColumn;
 import javax.swing.table.TableColumnModel;
 import javax.swing.table.TableModel;
-import javax.swing.table.TableRowSorter;
 import java.awt.*;
 import java.awt.event.*;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 
@@ -47,16 +49,26 @@ public class WokoToolWindow {
     private JButton clearButton;
     private JCheckBox includeLibsCheckBox;
     private JTextField textFieldPackages;
+    private JButton resolveButton;
+
+    // delay before filtering, so that we don't filter for each keystroke
+    private static final int FILTER_DELAY = 100;
 
     private Project project;
+    private final FacetFilterEngine filterEngine = new FacetFilterEngine();
+    private Alarm filterAlarm;
+    // incremented for each filter request, results of older requests are dropped
+    private volatile int filterGeneration = 0;
+    // descriptor to select once the filter has been applied
+    private WideaFacetDescriptor pendingSelection = null;
 
     public WokoToolWindow() {
         reloadButton.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent actionEvent) {
-                reloadButton.setEnabled(false);
-                getWpc().refresh();
+                // scan runs in the background, and a new click
+                // supersedes any scan in progress
+                getWpc().reload();
                 textFieldFilter.setEnabled(true);
-                reloadButton.setEnabled(true);
             }
         });
         textFieldFilter.getDocument().addDocumentListener(
@@ -154,17 +166,23 @@ public class WokoToolWindow {
                 filter();
             }
         });
+        resolveButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent actionEvent) {
+                resolveFacet();
+            }
+        });
         textFieldPackages.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent actionEvent) {
-                getWpc().refresh();
+                getWpc().reload();
             }
         });
     }
 
     private void sortColumn(int index) {
         boolean sortKeyPresent = false;
-        DefaultRowSorter rs = (DefaultRowSorter)table1.getRowSorter();
+        RowSorter<?> rs = table1.getRowSorter();
         for (Object sk : rs.getSortKeys()) {
             RowSorter.SortKey sortKey = (RowSorter.SortKey)sk;
             if (sortKey.getColumn()==index) {
@@ -188,9 +206,64 @@ public class WokoToolWindow {
             FacetDescriptorTableModel model = (FacetDescriptorTableModel) table1.getModel();
             WideaFacetDescriptor fd = model.getFacetDescriptorAt(row);
             if (fd!=null) {
-                getWpc().openClassInEditor(fd.getFacetClassName());
+                getWpc().openInEditor(fd);
+            }
+        }
+    }
+
+    /**
+     * Ask for a facet name, profile(s) and target type, and show the
+     * facet JFacets would pick among the facets with that name.
+     */
+    private void resolveFacet() {
+        String query = Messages.showInputDialog(project,
+                "Facet name, profile(s) from the most specific, and target type\n" +
+                        "(e.g. view developer,all com.example.Book) :",
+                "Resolve Facet",
+                WokoProjectComponent.WOKO_ICON);
+        if (query==null) {
+            return;
+        }
+        String[] parts = query.trim().split("\\s+");
+        if (parts.length < 2) {
+            balloonOnFilterTextField("Please enter at least a facet name and a profile", MessageType.WARNING);
+            return;
+        }
+        final String name = parts[0];
+        final List<String> profiles = WokoProjectComponent.splitList(parts[1]);
+        final String typeName = parts.length > 2 ? parts[2] : "java.lang.Object";
+        final WokoProjectComponent wpc = getWpc();
+        ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
+            @Override
+            public void run() {
+                final FacetResolver.Resolution res = wpc.resolveFacet(name, profiles, typeName);
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        showResolution(name, typeName, res);
+                    }
+                });
             }
+        });
+    }
+
+    private void showResolution(String name, String typeName, FacetResolver.Resolution res) {
+        WideaFacetDescriptor fd = res.getDescriptor();
+        if (fd==null) {
+            balloonOnFilterTextField("No facet <b>" + name + "</b> for <b>" + typeName + "</b> (" +
+                    res.getNbLookups() + " lookups)", MessageType.WARNING);
+            return;
+        }
+        // show the facets with that name, and select the one that wins
+        if (fd.getType()==FdType.Compiled) {
+            includeLibsCheckBox.setSelected(true);
         }
+        pendingSelection = fd;
+        textFieldFilter.setText("name:" + name);
+        filter(0);
+        balloonOnFilterTextField("JFacets picks <b>" + fd.getFacetClassName() + "</b><br/>" +
+                "found for profile <b>" + res.getProfileId() + "</b> and type <b>" + res.getTypeName() +
+                "</b> (" + res.getNbLookups() + " lookups)", MessageType.INFO);
     }
 
     private WokoProjectComponent getWpc() {
@@ -198,28 +271,57 @@ public class WokoToolWindow {
     }
 
     private void filter() {
+        filter(FILTER_DELAY);
+    }
+
+    /**
+     * Filter the table in the background, after passed delay (keystrokes
+     * typed during the delay restart it). The matching rows are computed
+     * against the search index of the current descriptors, and are applied
+     * in the EDT, unless a more recent filter has been requested, or the
+     * table doesn't show these descriptors.
+     */
+    private void filter(int delay) {
+        final int generation = ++filterGeneration;
+        // grab the filter state in the EDT
+        final String filterText = textFieldFilter.getText();
+        final boolean includeLibs = includeLibsCheckBox.isSelected();
         final WokoProjectComponent wpc = getWpc();
-        setFacetTableFilterCallback(table1, new FilterCallback() {
+        filterAlarm.cancelAllRequests();
+        filterAlarm.addRequest(new Runnable() {
             @Override
-            protected boolean matches(WideaFacetDescriptor fd) {
-                String text = textFieldFilter.getText();
-                boolean fdMatch = fdMatch(fd, text);
-                if (fdMatch) {
-                    // do we include libs or not ?
-                    if (!includeLibsCheckBox.isSelected()) {
-                        // check if class is project class
-                        return !fd.getType().equals(FdType.Compiled);
-                    }
+            public void run() {
+                if (generation!=filterGeneration) {
+                    return;
                 }
-                return fdMatch;
+                // the engine narrows down the previous results when the
+                // query is extended, and the sorter shows the matching
+                // rows in one go, best matches first
+                final FacetSearchIndex index = wpc.getSearchIndex();
+                final FacetFilterEngine.Result result = filterEngine.filter(index, filterText, includeLibs);
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        FacetDescriptorTableModel model = (FacetDescriptorTableModel)table1.getModel();
+                        if (generation==filterGeneration
+                                && index.getDescriptors()==model.getSnapshot().getDescriptors()) {
+                            ((FacetRowSorter)table1.getRowSorter()).setRows(result.getRows(), result.getScores(), result.getMatchRanges());
+                            if (pendingSelection!=null) {
+                                selectFacetDescriptor(pendingSelection, true);
+                                pendingSelection = null;
+                            }
+                        }
+                    }
+                });
             }
-        });
+        }, delay);
     }
 
     public void init(Project project) {
         this.project = project;
-        FacetDescriptorTableModel model = new FacetDescriptorTableModel(project);
-        TableRowSorter<FacetDescriptorTableModel> sorter = new TableRowSorter<FacetDescriptorTableModel>(model);
+        this.filterAlarm = new Alarm(Alarm.ThreadToUse.POOLED_THREAD, project);
+        FacetDescriptorTableModel model = new FacetDescriptorTableModel();
+        FacetRowSorter sorter = new FacetRowSorter(model);
         table1.setModel(model);
         table1.setRowSorter(sorter);
         table1.setIntercellSpacing(new Dimension(0, 0));
@@ -237,8 +339,19 @@ public class WokoToolWindow {
 
     public void refreshContents() {
         // packages textField
+        refreshPackages();
+        // refresh the table
+        refreshTable();
+        // focus the search field
+        textFieldFilter.requestFocus();
+    }
+
+    public void refreshPackages() {
         WokoProjectComponent wpc = project.getComponent(WokoProjectComponent.class);
         List<String> facetPackages = wpc.getFacetPackages();
+        if (facetPackages==null) {
+            facetPackages = Collections.emptyList();
+        }
         StringBuilder sb = new StringBuilder();
         for (Iterator<String> facetPackageIt = facetPackages.iterator() ; facetPackageIt.hasNext() ; ) {
             sb.append(facetPackageIt.next());
@@ -247,46 +360,63 @@ public class WokoToolWindow {
             }
         }
         textFieldPackages.setText(sb.toString());
-
-        // refresh the table
-        ((FacetDescriptorTableModel)table1.getModel()).fireTableDataChanged();
-        // focus the search field
-        textFieldFilter.requestFocus();
     }
 
-    public static abstract class FilterCallback {
-
-        protected abstract boolean matches(WideaFacetDescriptor fd);
-
-        protected boolean strMatch(String s, String filterText) {
-            return filterText == null
-                    || filterText.equals("")
-                    || s == null
-                    || s.equals("")
-                    || s.toLowerCase().contains(filterText.toLowerCase());
+    /**
+     * Show the current snapshot if it has been built, the component
+     * calls {@link #showSnapshot} otherwise once it's built.
+     */
+    public void refreshTable() {
+        FacetSnapshot snapshot = getWpc().getSnapshotIfBuilt();
+        if (snapshot!=null) {
+            showSnapshot(snapshot);
+        } else {
+            filter(0);
         }
+    }
 
-        protected boolean fdMatch(WideaFacetDescriptor fd, String filterText) {
-            return fd == null
-                    || strMatch(fd.getName(), filterText)
-                    || strMatch(fd.getProfileId(), filterText)
-                    || strMatch(fd.getTargetObjectTypeName(), filterText)
-                    || strMatch(fd.getFacetClassName(), filterText);
+    void showSnapshot(FacetSnapshot snapshot) {
+        FacetDescriptorTableModel model = (FacetDescriptorTableModel)table1.getModel();
+        if (snapshot!=model.getSnapshot()) {
+            WideaFacetDescriptor selected = getSelectedFacetDescriptor();
+            boolean selectionVisible = selected!=null
+                    && table1.getVisibleRect().intersects(table1.getCellRect(table1.getSelectedRow(), 0, true));
+            // fires the events for the rows that have changed only
+            model.setSnapshot(snapshot);
+            if (selected!=null) {
+                selectFacetDescriptor(selected, selectionVisible);
+            }
         }
+        // the row filter works on the rows of the previous descriptors
+        filter(0);
+    }
 
+    private WideaFacetDescriptor getSelectedFacetDescriptor() {
+        int selectedRow = table1.getSelectedRow();
+        if (selectedRow==-1) {
+            return null;
+        }
+        FacetDescriptorTableModel model = (FacetDescriptorTableModel)table1.getModel();
+        return model.getFacetDescriptorAt(table1.convertRowIndexToModel(selectedRow));
     }
 
-    public void setFacetTableFilterCallback(JTable table, final FilterCallback callback) {
-        TableRowSorter<FacetDescriptorTableModel> sorter = (TableRowSorter<FacetDescriptorTableModel>)table.getRowSorter();
-        if (sorter!=null) {
-            sorter.setRowFilter(new RowFilter<FacetDescriptorTableModel,Integer>() {
-                @Override
-                public boolean include(Entry<? extends FacetDescriptorTableModel, ? extends Integer> entry) {
-                    FacetDescriptorTableModel model = entry.getModel();
-                    WideaFacetDescriptor fd = model.getFacetDescriptorAt(entry.getIdentifier());
-                    return callback.matches(fd);
-                }
-            });
+    /**
+     * Select the row of passed descriptor if it's shown, so that the selection
+     * sticks to the same descriptor when the rows change.
+     */
+    private void selectFacetDescriptor(WideaFacetDescriptor fd, boolean scrollToVisible) {
+        FacetDescriptorTableModel model = (FacetDescriptorTableModel)table1.getModel();
+        int modelRow = model.getSnapshot().indexOf(fd);
+        int viewRow = modelRow==-1 ? -1 : table1.convertRowIndexToView(modelRow);
+        if (viewRow!=-1) {
+            if (table1.getSelectedRow()!=viewRow) {
+                // row events keep the selection on the same model
+                // row, but a "data changed" event clears it
+                table1.getSelectionModel().setSelectionInterval(viewRow, viewRow);
+            }
+            if (scrollToVisible) {
+                table1.scrollRectToVisible(table1.getCellRect(viewRow, 0, true));
+            }
         }
     }
 
@@ -299,11 +429,19 @@ public class WokoToolWindow {
     }
 
     public void balloonOnPackagesTextField(String htmlText) {
+        balloon(textFieldPackages, htmlText, MessageType.WARNING);
+    }
+
+    private void balloonOnFilterTextField(String htmlText, MessageType messageType) {
+        balloon(textFieldFilter, htmlText, messageType);
+    }
+
+    private static void balloon(JComponent component, String htmlText, MessageType messageType) {
         JBPopupFactory.getInstance()
-                        .createHtmlTextBalloonBuilder(htmlText, MessageType.WARNING, null)
+                        .createHtmlTextBalloonBuilder(htmlText, messageType, null)
                         .setFadeoutTime(7500)
                         .createBalloon()
-                        .show(RelativePoint.getCenterOf(textFieldPackages),
+                        .show(RelativePoint.getCenterOf(component),
                                 Balloon.Position.above);
     }
 